@@ -0,0 +1,115 @@
+package com.youthlin.benchmark;
+
+import com.youthlin.avatar.Gravatar;
+import com.youthlin.avatar.HashUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 头像地址生成热路径: md5、hex、withEmail().getUrl()、getUrlWithEmail 和 defaults(String) 的地址编码.
+ * 邮箱分 ASCII 和中文两组, 每个线程轮流使用一组预先生成的邮箱, 避免结果被 JIT 常量折叠.
+ * <p>
+ * 单线程和多线程、并统计每次调用分配的内存:
+ * <pre>
+ * java -jar benchmark/target/benchmarks.jar GravatarBenchmark -prof gc -t 1
+ * java -jar benchmark/target/benchmarks.jar GravatarBenchmark -prof gc -t max
+ * </pre>
+ * 或者直接运行 {@link BenchmarkMain}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GravatarBenchmark {
+    private static final int EMAILS = 1024;
+    private static final String CJK = "林陈青春邮件头像测试用户张王李赵";
+    @Param({"ASCII", "CJK"})
+    public String charset;
+    private String[] emails;
+    private byte[][] digests;
+    private String defaultUrl;
+    private int index;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        emails = new String[EMAILS];
+        digests = new byte[EMAILS][];
+        for (int i = 0; i < EMAILS; i++) {
+            StringBuilder sb = new StringBuilder();
+            int len = 6 + random.nextInt(10);
+            for (int j = 0; j < len; j++) {
+                if ("CJK".equals(charset)) {
+                    sb.append(CJK.charAt(random.nextInt(CJK.length())));
+                } else {
+                    sb.append((char) ('a' + random.nextInt(26)));
+                }
+            }
+            emails[i] = sb.append(i).append("@example.com").toString();
+            digests[i] = new byte[16];
+            random.nextBytes(digests[i]);
+        }
+        defaultUrl = "CJK".equals(charset)
+                ? "https://example.com/头像/默认.png?name=用户&size=80"
+                : "https://example.com/avatar/default.png?name=user&size=80";
+    }
+
+    private int next() {
+        return index = (index + 1) & (EMAILS - 1);
+    }
+
+    @Benchmark
+    public String md5() {
+        return HashUtil.md5(emails[next()]);
+    }
+
+    @Benchmark
+    public String hex() {
+        return HashUtil.hex(digests[next()]);
+    }
+
+    @Benchmark
+    public String withEmailGetUrl() {
+        return Gravatar.withEmail(emails[next()]).size(80).defaults(Gravatar.DefaultType.IDENTICON).getUrl();
+    }
+
+    @Benchmark
+    public String getUrlWithEmail() {
+        return Gravatar.getUrlWithEmail(emails[next()]);
+    }
+
+    @Benchmark
+    public String defaultsUrlEncoding() {
+        return Gravatar.withHash("7158b0cc5dae9d7527b171166a9b7d74").defaults(defaultUrl).getUrl();
+    }
+
+    /**
+     * 所有可用线程同时生成地址, 检查每个线程各自的 MessageDigest 和缓冲区在竞争下的表现
+     */
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String withEmailGetUrlContended() {
+        return withEmailGetUrl();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String md5Contended() {
+        return md5();
+    }
+}
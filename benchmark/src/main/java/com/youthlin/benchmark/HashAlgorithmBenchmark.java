@@ -0,0 +1,77 @@
+package com.youthlin.benchmark;
+
+import com.youthlin.avatar.HashUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MD5 和 SHA-256 的对比: 邮箱(字符串)和较大的字节内容(ByteBuffer, InputStream)
+ * <pre>
+ * java -jar benchmark/target/benchmarks.jar HashAlgorithmBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashAlgorithmBenchmark {
+    @Param({"MD5", "SHA256"})
+    public HashUtil.Algorithm algorithm;
+    @Param({"4096"})
+    public int contentSize;
+    private String email;
+    private ByteBuffer buffer;
+    private byte[] content;
+
+    @Setup
+    public void setup() {
+        email = "youthlin.chen@qunar.com";
+        content = new byte[contentSize];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 31);
+        }
+        buffer = ByteBuffer.wrap(content);
+    }
+
+    @Benchmark
+    public String email() {
+        return HashUtil.hash(algorithm, email);
+    }
+
+    @Benchmark
+    public String normalizedEmail() {
+        return HashUtil.hashNormalized(algorithm, email);
+    }
+
+    @Benchmark
+    public String byteBuffer() {
+        buffer.clear();
+        return HashUtil.hash(algorithm, buffer);
+    }
+
+    @Benchmark
+    public String inputStream() throws Exception {
+        return HashUtil.hash(algorithm, new ByteArrayInputStream(content));
+    }
+
+    @Benchmark
+    public String emailViaStringBytes() {
+        return HashUtil.hash(algorithm, ByteBuffer.wrap(email.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,318 @@
+package com.youthlin.avatar;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.GeneralPath;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 在本地生成默认头像(identicon 几何图形、retro 像素图)的 PNG, 不需要访问 gravatar.com.
+ * <p>
+ * 图像完全由哈希决定, 同一个哈希和大小总是生成相同的图片. 编码好的 PNG 按 (类型, 大小, 哈希) 缓存在有上限的缓存中.
+ * 在服务器上使用时建议以 -Djava.awt.headless=true 启动.
+ * <pre>
+ * AvatarRenderer renderer = AvatarRenderer.newInstance().cacheSize(4096);
+ * renderer.writeTo(HashUtil.md5Normalized(email), Gravatar.DefaultType.IDENTICON, 80, response.getOutputStream());
+ * </pre>
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class AvatarRenderer {
+    public static final int DEFAULT_SIZE = 80;
+    public static final int MAX_SIZE = 2048;
+    private static final int DEFAULT_CACHE_SIZE = 1024;
+    private static final int BACKGROUND = 0xFFFFFF;
+    private static final int RETRO_BACKGROUND = 0xF0F0F0;
+    /**
+     * identicon 的图块, 每个图块是 4x4 格子上的多边形, 顶点 i 表示格点 (i % 5, i / 5)
+     */
+    private static final int[][] PATCHES = {
+            {0, 4, 24, 20},
+            {0, 4, 20},
+            {2, 24, 20},
+            {0, 2, 20, 22},
+            {2, 14, 22, 10},
+            {0, 14, 24, 22},
+            {2, 24, 22, 13, 11, 22, 20},
+            {0, 14, 22},
+            {6, 8, 18, 16},
+            {4, 20, 10, 12, 2},
+            {0, 2, 12, 10},
+            {10, 14, 22},
+            {20, 12, 24},
+            {10, 2, 12},
+            {0, 2, 10},
+            {},
+    };
+    /**
+     * 中心位置只使用旋转对称的图块
+     */
+    private static final int[] CENTER_PATCHES = {0, 4, 8, 15};
+    private static final int RETRO_CELLS = 5;
+    private BoundedCache<String, byte[]> cache = new BoundedCache<String, byte[]>(DEFAULT_CACHE_SIZE);
+
+    private AvatarRenderer() {
+    }
+
+    public static AvatarRenderer newInstance() {
+        return new AvatarRenderer();
+    }
+
+    /**
+     * 缓存的图片数, 默认 1024; 为 0 时不缓存
+     */
+    public AvatarRenderer cacheSize(int size) {
+        this.cache = size > 0 ? new BoundedCache<String, byte[]>(size) : null;
+        return this;
+    }
+
+    /**
+     * 使用外部的缓存, 可以在多个渲染器间共享; 为 null 时不缓存
+     */
+    public AvatarRenderer cache(BoundedCache<String, byte[]> cache) {
+        this.cache = cache;
+        return this;
+    }
+
+    public BoundedCache<String, byte[]> getCache() {
+        return cache;
+    }
+
+    /**
+     * 是否能在本地生成这种默认头像
+     */
+    public static boolean isSupported(Gravatar.DefaultType type) {
+        return type == Gravatar.DefaultType.IDENTICON || type == Gravatar.DefaultType.RETRO;
+    }
+
+    /**
+     * @param hash 十六进制哈希, 如 {@link HashUtil#md5(String)} 的结果, 至少 16 个字符
+     * @param type {@link Gravatar.DefaultType#IDENTICON} 或 {@link Gravatar.DefaultType#RETRO}
+     * @param size 边长, 不大于 0 时使用默认的 80, 最大 2048
+     * @return PNG 字节, 返回的是副本
+     */
+    public byte[] render(String hash, Gravatar.DefaultType type, int size) {
+        return png(hash, type, size).clone();
+    }
+
+    /**
+     * 把 PNG 写入输出流, 命中缓存时直接写出缓存的字节
+     *
+     * @return 写出的字节数
+     */
+    public int writeTo(String hash, Gravatar.DefaultType type, int size, OutputStream out) throws IOException {
+        byte[] png = png(hash, type, size);
+        out.write(png);
+        return png.length;
+    }
+
+    public BufferedImage renderImage(String hash, Gravatar.DefaultType type, int size) {
+        byte[] bytes = parse(hash);
+        size = normalize(size);
+        if (type == Gravatar.DefaultType.IDENTICON) {
+            return identicon(bytes, size);
+        }
+        if (type == Gravatar.DefaultType.RETRO) {
+            return retro(bytes, size);
+        }
+        throw new IllegalArgumentException("Unsupported type: " + type);
+    }
+
+    private byte[] png(String hash, Gravatar.DefaultType type, int size) {
+        size = normalize(size);
+        BoundedCache<String, byte[]> cache = this.cache;
+        String key = null;
+        if (cache != null) {
+            key = type.getDesc() + ':' + size + ':' + hash;
+            byte[] png = cache.get(key);
+            if (png != null) {
+                return png;
+            }
+        }
+        byte[] png = encode(renderImage(hash, type, size));
+        if (cache != null) {
+            cache.put(key, png);
+        }
+        return png;
+    }
+
+    private static int normalize(int size) {
+        if (size <= 0) {
+            return DEFAULT_SIZE;
+        }
+        return Math.min(size, MAX_SIZE);
+    }
+
+    private static byte[] parse(String hash) {
+        int len = hash.length() / 2;
+        if (len < 8) {
+            throw new IllegalArgumentException("Hash too short: " + hash);
+        }
+        byte[] bytes = new byte[len];
+        for (int i = 0; i < len; i++) {
+            int hi = Character.digit(hash.charAt(i * 2), 16);
+            int lo = Character.digit(hash.charAt(i * 2 + 1), 16);
+            if (hi < 0 || lo < 0) {
+                throw new IllegalArgumentException("Not a hex hash: " + hash);
+            }
+            bytes[i] = (byte) (hi << 4 | lo);
+        }
+        return bytes;
+    }
+
+    private static byte[] encode(BufferedImage image) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        try {
+            ImageIO.write(image, "png", out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    //region identicon
+    /**
+     * Don Park 的 identicon: 3x3 个图块, 中心、四角、四边各用一种图块, 由哈希的前 32 位决定图块、旋转、反色和颜色
+     */
+    private static BufferedImage identicon(byte[] hash, int size) {
+        int code = (hash[0] & 0xFF) << 24 | (hash[1] & 0xFF) << 16 | (hash[2] & 0xFF) << 8 | (hash[3] & 0xFF);
+        int center = CENTER_PATCHES[code & 0x3];
+        boolean centerInvert = (code >> 2 & 0x1) != 0;
+        int corner = code >> 3 & 0xF;
+        boolean cornerInvert = (code >> 7 & 0x1) != 0;
+        int cornerTurn = code >> 8 & 0x3;
+        int side = code >> 10 & 0xF;
+        boolean sideInvert = (code >> 14 & 0x1) != 0;
+        int sideTurn = code >> 15 & 0x3;
+        int blue = code >> 16 & 0x1F;
+        int green = code >> 21 & 0x1F;
+        int red = code >>> 27 & 0x1F;
+        Color color = new Color(red << 3, green << 3, blue << 3);
+        Color background = new Color(BACKGROUND);
+
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setColor(background);
+            g.fillRect(0, 0, size, size);
+            double patch = size / 3.0;
+            patch(g, 1, 1, patch, center, 0, centerInvert, color, background);
+            //四边: 上、右、下、左, 依次旋转 90 度
+            patch(g, 1, 0, patch, side, sideTurn, sideInvert, color, background);
+            patch(g, 2, 1, patch, side, sideTurn + 1, sideInvert, color, background);
+            patch(g, 1, 2, patch, side, sideTurn + 2, sideInvert, color, background);
+            patch(g, 0, 1, patch, side, sideTurn + 3, sideInvert, color, background);
+            //四角: 左上、右上、右下、左下
+            patch(g, 0, 0, patch, corner, cornerTurn, cornerInvert, color, background);
+            patch(g, 2, 0, patch, corner, cornerTurn + 1, cornerInvert, color, background);
+            patch(g, 2, 2, patch, corner, cornerTurn + 2, cornerInvert, color, background);
+            patch(g, 0, 2, patch, corner, cornerTurn + 3, cornerInvert, color, background);
+        } finally {
+            g.dispose();
+        }
+        return image;
+    }
+
+    private static void patch(Graphics2D g, int col, int row, double patch, int type, int turn, boolean invert,
+                              Color color, Color background) {
+        int[] vertices = PATCHES[type];
+        if (type == PATCHES.length - 1) {
+            invert = !invert;//空白图块反色后就是实心的
+        }
+        Color fore = invert ? background : color;
+        Color back = invert ? color : background;
+        //相邻图块的边界取整到同一个像素, 避免出现缝隙
+        int x0 = (int) Math.round(col * patch);
+        int y0 = (int) Math.round(row * patch);
+        int x1 = (int) Math.round((col + 1) * patch);
+        int y1 = (int) Math.round((row + 1) * patch);
+        g.setColor(back);
+        g.fillRect(x0, y0, x1 - x0, y1 - y0);
+        if (vertices.length == 0) {
+            return;
+        }
+        double scale = (x1 - x0) / 4.0;
+        GeneralPath path = new GeneralPath();
+        for (int i = 0; i < vertices.length; i++) {
+            float x = (float) (vertices[i] % 5 * scale);
+            float y = (float) (vertices[i] / 5 * scale);
+            if (i == 0) {
+                path.moveTo(x, y);
+            } else {
+                path.lineTo(x, y);
+            }
+        }
+        path.closePath();
+        AffineTransform transform = AffineTransform.getTranslateInstance(x0, y0);
+        transform.rotate((turn & 0x3) * Math.PI / 2, (x1 - x0) / 2.0, (y1 - y0) / 2.0);
+        g.setColor(fore);
+        g.fill(transform.createTransformedShape(path));
+    }
+    //endregion identicon
+
+    //region retro
+    /**
+     * 5x5 左右对称的像素图: 左边 3 列的 15 个格子由哈希的 15 位决定是否着色, 颜色的色相由哈希的后两个字节决定
+     */
+    private static BufferedImage retro(byte[] hash, int size) {
+        int bits = (hash[0] & 0xFF) << 8 | (hash[1] & 0xFF);
+        float hue = ((hash[hash.length - 2] & 0xFF) << 8 | (hash[hash.length - 1] & 0xFF)) / 65536f;
+        float saturation = 0.45f + (hash[2] & 0x3F) / 255f;
+        float brightness = 0.55f + (hash[3] & 0x3F) / 255f;
+        int color = Color.HSBtoRGB(hue, saturation, brightness) & 0xFFFFFF;
+
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        //留出半个格子的边距, 格子边界取整到像素
+        double cell = size / (RETRO_CELLS + 1.0);
+        double margin = cell / 2;
+        int[] edges = new int[RETRO_CELLS + 1];
+        for (int i = 0; i <= RETRO_CELLS; i++) {
+            edges[i] = (int) Math.round(margin + i * cell);
+        }
+        int[] columns = new int[size];
+        for (int x = 0; x < size; x++) {
+            columns[x] = index(edges, x);
+        }
+        //同一行格子中的像素行都相同, 每行格子只计算一次
+        int[][] rows = new int[RETRO_CELLS + 1][];
+        for (int y = 0; y < size; y++) {
+            int r = index(edges, y);
+            int[] row = rows[r + 1];
+            if (row == null) {
+                row = rows[r + 1] = new int[size];
+                for (int x = 0; x < size; x++) {
+                    int c = columns[x];
+                    boolean on = false;
+                    if (r >= 0 && c >= 0) {
+                        int col = c < RETRO_CELLS / 2 + 1 ? c : RETRO_CELLS - 1 - c;//右边与左边对称
+                        on = (bits >> (r * 3 + col) & 0x1) != 0;
+                    }
+                    row[x] = on ? color : RETRO_BACKGROUND;
+                }
+            }
+            image.setRGB(0, y, size, 1, row, 0, size);
+        }
+        return image;
+    }
+
+    /**
+     * @return 像素所在的格子, 在边距中时返回 -1
+     */
+    private static int index(int[] edges, int p) {
+        if (p < edges[0] || p >= edges[edges.length - 1]) {
+            return -1;
+        }
+        int i = 0;
+        while (p >= edges[i + 1]) {
+            i++;
+        }
+        return i;
+    }
+    //endregion retro
+}
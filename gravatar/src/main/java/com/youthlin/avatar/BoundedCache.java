@@ -0,0 +1,184 @@
+package com.youthlin.avatar;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 有容量上限的并发 LRU 缓存, 用于缓存邮箱到哈希的映射, 避免活跃用户的邮箱在每次页面渲染时重复计算 md5.
+ * <p>
+ * 按键的哈希分为若干段, 每段是一个按访问顺序排列的 LinkedHashMap, 由各自的锁保护;
+ * 每段超出容量时淘汰该段最久未访问的条目, 所以总条目数不会超过 {@link #getCapacity()}.
+ * <pre>
+ * BoundedCache&lt;String, String&gt; cache = new BoundedCache&lt;String, String&gt;(100000);
+ * String hash = HashUtil.md5(email, cache);
+ * String url = Gravatar.withOptions().size(48).cache(cache).toTemplate().url(email);
+ * </pre>
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class BoundedCache<K, V> {
+    private static final int MAX_SEGMENTS = 64;
+    private static final int MIN_SEGMENT_CAPACITY = 16;
+    private final Segment<K, V>[] segments;
+    private final int mask;
+    private final int capacity;
+
+    /**
+     * @param capacity 最多缓存的条目数
+     */
+    @SuppressWarnings("unchecked")
+    public BoundedCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        int count = 1;
+        int max = Math.min(MAX_SEGMENTS, Runtime.getRuntime().availableProcessors() * 4);
+        while (count * 2 <= max && capacity / (count * 2) >= MIN_SEGMENT_CAPACITY) {
+            count *= 2;
+        }
+        segments = (Segment<K, V>[]) new Segment<?, ?>[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment<K, V>(capacity / count + (i < capacity % count ? 1 : 0));
+        }
+        mask = count - 1;
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return 缓存的值, 没有时返回 null 并计为一次未命中
+     */
+    public V get(K key) {
+        Segment<K, V> segment = segment(key);
+        segment.lock.lock();
+        try {
+            V value = segment.map.get(key);
+            if (value == null) {
+                segment.misses++;
+            } else {
+                segment.hits++;
+            }
+            return value;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    public void put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException();
+        }
+        Segment<K, V> segment = segment(key);
+        segment.lock.lock();
+        try {
+            segment.map.put(key, value);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    public V remove(K key) {
+        Segment<K, V> segment = segment(key);
+        segment.lock.lock();
+        try {
+            return segment.map.remove(key);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            segment.lock.lock();
+            try {
+                size += segment.map.size();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getHitCount() {
+        long hits = 0;
+        for (Segment<K, V> segment : segments) {
+            segment.lock.lock();
+            try {
+                hits += segment.hits;
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return hits;
+    }
+
+    public long getMissCount() {
+        long misses = 0;
+        for (Segment<K, V> segment : segments) {
+            segment.lock.lock();
+            try {
+                misses += segment.misses;
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return misses;
+    }
+
+    /**
+     * @return 命中率, 还没有查询过时返回 0
+     */
+    public double getHitRate() {
+        long hits = getHitCount();
+        long total = hits + getMissCount();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * 清空缓存和计数
+     */
+    public void clear() {
+        for (Segment<K, V> segment : segments) {
+            segment.lock.lock();
+            try {
+                segment.map.clear();
+                segment.hits = 0;
+                segment.misses = 0;
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    private Segment<K, V> segment(K key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return segments[h & mask];
+    }
+
+    @Override
+    public String toString() {
+        return "BoundedCache{size=" + size() + ", capacity=" + capacity + ", hits=" + getHitCount()
+                + ", misses=" + getMissCount() + '}';
+    }
+
+    private static final class Segment<K, V> {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Map<K, V> map;
+        private long hits;
+        private long misses;
+
+        private Segment(final int capacity) {
+            this.map = new LinkedHashMap<K, V>(Math.min(capacity, 1024) * 4 / 3 + 1, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+    }
+}
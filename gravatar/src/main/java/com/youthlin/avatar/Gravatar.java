@@ -2,13 +2,23 @@ package com.youthlin.avatar;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 @SuppressWarnings({"WeakerAccess", "unused"})
 public final class Gravatar {
     public static final String PREFIX = "https://www.gravatar.com/avatar/";
+    private static final int DEFAULT_PARALLEL_THRESHOLD = 1024;
+    private static final int DEFAULT_SIZE = 80;//Gravatar 不指定大小时的边长
+    private static final int MIN_SLICE = 256;//并行时每个任务至少处理的邮箱数
     /**
      * URL 前缀
      */
@@ -33,6 +43,14 @@ public final class Gravatar {
      * 图片大小，正方形边长
      */
     private int size = 0;
+    /**
+     * 批量生成时达到这个数量才并行
+     */
+    private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+    /**
+     * 批量生成和模板使用的邮箱到哈希的缓存
+     */
+    private BoundedCache<String, String> cache = null;
 
     public enum DefaultType {
         /**
@@ -95,10 +113,52 @@ public final class Gravatar {
         return withHash(HashUtil.md5(email));
     }
 
+    /**
+     * 使用指定的算法计算邮箱的哈希, Gravatar 同时接受 MD5 和 SHA-256
+     */
+    public static Gravatar withEmail(String email, HashUtil.Algorithm algorithm) {
+        return withHash(HashUtil.hash(algorithm, email));
+    }
+
+    /**
+     * 先在缓存中查找邮箱的哈希, 未命中时计算并放入缓存. 缓存以原始邮箱为键, 见 {@link HashUtil#md5(String, BoundedCache)}
+     */
+    public static Gravatar withEmailCached(String email, BoundedCache<String, String> cache) {
+        return withHash(HashUtil.md5(email, cache));
+    }
+
+    /**
+     * 按 Gravatar 的要求先去掉首尾空白并转为小写再计算哈希, 见 {@link HashUtil#md5Normalized(CharSequence)}
+     */
+    public static Gravatar withNormalizedEmail(CharSequence email) {
+        return withHash(HashUtil.md5Normalized(email));
+    }
+
+    /**
+     * 按规范化后的邮箱查找缓存, 未命中时计算并放入缓存, 见 {@link HashUtil#md5Normalized(CharSequence, BoundedCache)}
+     */
+    public static Gravatar withNormalizedEmailCached(CharSequence email, BoundedCache<String, String> cache) {
+        return withHash(HashUtil.md5Normalized(email, cache));
+    }
+
+    public static Gravatar withNormalizedEmail(CharSequence email, HashUtil.Algorithm algorithm) {
+        return withHash(HashUtil.hashNormalized(algorithm, email));
+    }
+
     public static Gravatar withHash(String hash) {
         return new Gravatar().md5(hash);
     }
 
+    /**
+     * 只设置选项, 用于批量生成: {@link #getUrls(Collection)}
+     * <pre>
+     * List&lt;String&gt; urls = Gravatar.withOptions().size(48).defaults(DefaultType.IDENTICON).getUrls(emails, executor);
+     * </pre>
+     */
+    public static Gravatar withOptions() {
+        return new Gravatar();
+    }
+
     private Gravatar md5(String hash) {
         md5 = hash;
         return this;
@@ -151,8 +211,139 @@ public final class Gravatar {
         return this;
     }
 
+    /**
+     * 批量生成时邮箱数达到 threshold 才分片并行计算, 默认 1024
+     */
+    public Gravatar parallelThreshold(int threshold) {
+        this.parallelThreshold = Math.max(1, threshold);
+        return this;
+    }
+
+    /**
+     * 批量生成({@link #getUrls(Collection)})和模板({@link #toTemplate()})使用的邮箱到哈希的缓存, 和 {@link #withEmailCached(String, BoundedCache)} 一样以原始邮箱为键
+     */
+    public Gravatar cache(BoundedCache<String, String> cache) {
+        this.cache = cache;
+        return this;
+    }
+
     public String getUrl() {
-        StringBuilder sb = new StringBuilder(prefix).append(md5);
+        String hash = String.valueOf(md5);
+        String suffix = suffix();
+        return new StringBuilder(prefix.length() + hash.length() + suffix.length())
+                .append(prefix).append(hash).append(suffix).toString();
+    }
+
+    /**
+     * 用同一个哈希生成多个尺寸的地址, 忽略 {@link #size(int)}
+     */
+    public String[] getUrls(int... sizes) {
+        return toTemplate().urlsForHash(String.valueOf(md5), sizes);
+    }
+
+    /**
+     * 用同一个哈希生成 img 标签的 srcset, 每个尺寸用宽度描述符, 忽略 {@link #size(int)}
+     * <pre>
+     * String srcset = Gravatar.withEmail(email).defaults(DefaultType.IDENTICON).getSrcset(48, 96, 144);
+     * </pre>
+     */
+    public String getSrcset(int... sizes) {
+        return toTemplate().srcsetForHash(String.valueOf(md5), sizes);
+    }
+
+    /**
+     * 用同一个哈希生成按像素密度(1x, 2x ... maxDensity x)的 srcset, 基础尺寸为 {@link #size(int)}, 没有设置时为 80
+     */
+    public String getDensitySrcset(int maxDensity) {
+        return toTemplate().densitySrcsetForHash(String.valueOf(md5), size > 0 ? size : DEFAULT_SIZE, maxDensity);
+    }
+
+    /**
+     * 按当前选项为每个邮箱生成地址, 顺序与输入相同
+     */
+    public List<String> getUrls(Collection<String> emails) {
+        return getUrls(emails, null);
+    }
+
+    /**
+     * 按当前选项为每个邮箱生成地址, 顺序与输入相同.
+     * 邮箱数达到 {@link #parallelThreshold(int)} 时分片交给线程池(可以是 ForkJoinPool)计算 md5,
+     * 所有地址共用同一个查询参数后缀.
+     *
+     * @param emails   邮箱
+     * @param executor 线程池, 为 null 时在当前线程中计算
+     * @return 地址列表
+     */
+    public List<String> getUrls(Collection<String> emails, ExecutorService executor) {
+        final String[] input = emails.toArray(new String[emails.size()]);
+        final String[] urls = new String[input.length];
+        final GravatarTemplate template = toTemplate();
+        int count = input.length;
+        if (executor == null || count < parallelThreshold) {
+            fill(input, urls, 0, count, template);
+            return Arrays.asList(urls);
+        }
+        int slice = Math.max(MIN_SLICE, count / (Runtime.getRuntime().availableProcessors() * 4) + 1);
+        List<Future<?>> futures = new ArrayList<Future<?>>(count / slice + 1);
+        for (int from = 0; from < count; from += slice) {
+            final int start = from;
+            final int end = Math.min(count, from + slice);
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    fill(input, urls, start, end, template);
+                }
+            }));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+            throw new IllegalStateException("Interrupted.", e);
+        } catch (ExecutionException e) {
+            //和串行时一样抛出原来的异常
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+        return Arrays.asList(urls);
+    }
+
+    private static void fill(String[] emails, String[] urls, int from, int to, GravatarTemplate template) {
+        for (int i = from; i < to; i++) {
+            urls[i] = template.url(emails[i]);
+        }
+    }
+
+    /**
+     * 把当前选项(前缀、扩展名、大小、默认头像、强制默认、缓存)编译为不可变的模板, 之后修改这个对象不影响模板
+     */
+    public GravatarTemplate toTemplate() {
+        StringBuilder params = new StringBuilder();
+        if (defaultUrl != null) {
+            params.append("&d=").append(defaultUrl);
+        }
+        if (forceDefault != null) {
+            params.append('&').append(forceDefault);
+        }
+        return new GravatarTemplate(prefix, suffix(), extension == null ? "" : extension, params.toString(), cache);
+    }
+
+    /**
+     * 哈希之后的部分: 扩展名和查询参数
+     */
+    private String suffix() {
+        StringBuilder sb = new StringBuilder();
         if (extension != null) {
             sb.append(extension);
         }
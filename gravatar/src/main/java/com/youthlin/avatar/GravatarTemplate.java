@@ -0,0 +1,199 @@
+package com.youthlin.avatar;
+
+/**
+ * 预先编译好的头像地址模板: 前缀和查询参数后缀在创建时就确定, 生成地址时只需计算哈希并拼接.
+ * <p>
+ * 不可变, 可以作为静态常量在多个线程间共享:
+ * <pre>
+ * static final GravatarTemplate AVATAR = Gravatar.withOptions()
+ *         .size(48)
+ *         .defaults(Gravatar.DefaultType.IDENTICON)
+ *         .toTemplate();
+ * ...
+ * String url = AVATAR.url(email);
+ * </pre>
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class GravatarTemplate {
+    private final char[] prefix;
+    private final char[] suffix;
+    /**
+     * 多尺寸地址中哈希之后、大小之前的部分: 扩展名和 "?s="
+     */
+    private final char[] sizeHead;
+    /**
+     * 多尺寸地址中大小之后的部分: 默认头像等其他查询参数
+     */
+    private final char[] sizeTail;
+    private final BoundedCache<String, String> cache;
+
+    GravatarTemplate(String prefix, String suffix, String extension, String params, BoundedCache<String, String> cache) {
+        this.prefix = prefix.toCharArray();
+        this.suffix = suffix.toCharArray();
+        this.sizeHead = (extension + "?s=").toCharArray();
+        this.sizeTail = params.toCharArray();
+        this.cache = cache;
+    }
+
+    /**
+     * @param email 邮箱, 和 {@link Gravatar#withEmail(String)} 一样直接计算 md5; 设置了缓存时先查缓存
+     */
+    public String url(String email) {
+        return urlForHash(HashUtil.md5(email, cache));
+    }
+
+    /**
+     * @param hash 邮箱的 md5
+     */
+    public String urlForHash(String hash) {
+        int len = hash.length();
+        char[] out = new char[prefix.length + len + suffix.length];
+        System.arraycopy(prefix, 0, out, 0, prefix.length);
+        hash.getChars(0, len, out, prefix.length);
+        System.arraycopy(suffix, 0, out, prefix.length + len, suffix.length);
+        return new String(out);
+    }
+
+    /**
+     * 只计算一次哈希, 生成多个尺寸的地址; 忽略模板中设置的大小
+     *
+     * @param sizes 边长
+     */
+    public String[] urls(String email, int... sizes) {
+        return urlsForHash(HashUtil.md5(email, cache), sizes);
+    }
+
+    public String[] urlsForHash(String hash, int... sizes) {
+        String[] urls = new String[sizes.length];
+        int len = hash.length();
+        for (int i = 0; i < sizes.length; i++) {
+            int size = checkSize(sizes[i]);
+            char[] out = new char[prefix.length + len + sizeHead.length + digits(size) + sizeTail.length];
+            putUrl(out, 0, hash, size);
+            urls[i] = new String(out);
+        }
+        return urls;
+    }
+
+    /**
+     * 只计算一次哈希, 生成 img 标签的 srcset 属性值, 如 "...?s=48 48w, ...?s=96 96w"; 忽略模板中设置的大小
+     *
+     * @param sizes 边长, 同时用作宽度描述符
+     */
+    public String srcset(String email, int... sizes) {
+        return srcsetForHash(HashUtil.md5(email, cache), sizes);
+    }
+
+    public String srcsetForHash(String hash, int... sizes) {
+        int len = 0;
+        for (int size : sizes) {
+            int digits = digits(checkSize(size));
+            len += prefix.length + hash.length() + sizeHead.length + digits + sizeTail.length + 1 + digits + 1 + 2;
+        }
+        if (len == 0) {
+            return "";
+        }
+        char[] out = new char[len - 2];//最后一项之后没有 ", "
+        int pos = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            if (i > 0) {
+                out[pos++] = ',';
+                out[pos++] = ' ';
+            }
+            pos = putUrl(out, pos, hash, sizes[i]);
+            out[pos++] = ' ';
+            pos = putInt(out, pos, sizes[i]);
+            out[pos++] = 'w';
+        }
+        return new String(out);
+    }
+
+    /**
+     * 按像素密度生成 srcset, 如 size=48, maxDensity=3 时为 "...?s=48 1x, ...?s=96 2x, ...?s=144 3x"
+     */
+    public String densitySrcset(String email, int size, int maxDensity) {
+        return densitySrcsetForHash(HashUtil.md5(email, cache), size, maxDensity);
+    }
+
+    public String densitySrcsetForHash(String hash, int size, int maxDensity) {
+        checkSize(size);
+        int len = 0;
+        for (int d = 1; d <= maxDensity; d++) {
+            len += prefix.length + hash.length() + sizeHead.length + digits(checkSize(size * d)) + sizeTail.length
+                    + 1 + digits(d) + 1 + 2;
+        }
+        if (len == 0) {
+            return "";
+        }
+        char[] out = new char[len - 2];
+        int pos = 0;
+        for (int d = 1; d <= maxDensity; d++) {
+            if (d > 1) {
+                out[pos++] = ',';
+                out[pos++] = ' ';
+            }
+            pos = putUrl(out, pos, hash, size * d);
+            out[pos++] = ' ';
+            pos = putInt(out, pos, d);
+            out[pos++] = 'x';
+        }
+        return new String(out);
+    }
+
+    private int putUrl(char[] out, int pos, String hash, int size) {
+        System.arraycopy(prefix, 0, out, pos, prefix.length);
+        pos += prefix.length;
+        hash.getChars(0, hash.length(), out, pos);
+        pos += hash.length();
+        System.arraycopy(sizeHead, 0, out, pos, sizeHead.length);
+        pos = putInt(out, pos + sizeHead.length, size);
+        System.arraycopy(sizeTail, 0, out, pos, sizeTail.length);
+        return pos + sizeTail.length;
+    }
+
+    private static int checkSize(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be positive: " + size);
+        }
+        return size;
+    }
+
+    private static int digits(int value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    /**
+     * 把正整数的十进制写入 out
+     *
+     * @return 写入后的位置
+     */
+    private static int putInt(char[] out, int pos, int value) {
+        int end = pos + digits(value);
+        for (int i = end - 1; i >= pos; i--) {
+            out[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return end;
+    }
+
+    public String getPrefix() {
+        return new String(prefix);
+    }
+
+    /**
+     * @return 哈希之后的部分: 扩展名和查询参数
+     */
+    public String getSuffix() {
+        return new String(suffix);
+    }
+
+    @Override
+    public String toString() {
+        return "GravatarTemplate{" + new String(prefix) + "{hash}" + new String(suffix) + '}';
+    }
+}
@@ -1,33 +1,316 @@
 package com.youthlin.avatar;
 
-import java.io.UnsupportedEncodingException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
 
 @SuppressWarnings("WeakerAccess")
 public final class HashUtil {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final int STREAM_BUFFER = 8192;
+    /**
+     * 每个线程复用的编码缓冲区大小, 更长的输入使用临时数组, 避免一次长输入让每个线程永久持有大数组
+     */
+    private static final int MAX_REUSED_BUFFER = 1024;
+    private static final int MAX_DIGEST_LENGTH = 32;
+    private static final int ALGORITHMS = Algorithm.values().length;
+    private static final int BYTES = ALGORITHMS;
+    private static final int RESULT = ALGORITHMS + 1;
+    private static final int CHARS = ALGORITHMS + 2;
+    /**
+     * MessageDigest 不是线程安全的, 每个线程为每种算法复用各自的一个, 连同编码和输出用的缓冲区.
+     * <p>
+     * 线程本地变量只保存 JDK 的类型(按算法下标的 MessageDigest, 之后是编码、摘要、十六进制的缓冲区),
+     * 部署在容器中时线程池里的线程不会因此引用 Web 应用的类加载器.
+     */
+    private static final ThreadLocal<Object[]> STATE = new ThreadLocal<Object[]>();
+
+    /**
+     * 哈希算法. Gravatar 同时接受 MD5 和 SHA-256 的邮箱哈希
+     */
+    public enum Algorithm {
+        MD5("MD5", 16),
+        SHA256("SHA-256", 32);
+
+        private final String name;
+        private final int length;
+
+        Algorithm(String name, int length) {
+            this.name = name;
+            this.length = length;
+        }
+
+        /**
+         * @return MessageDigest 使用的算法名
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return 摘要的字节数, 十六进制字符串的长度是它的两倍
+         */
+        public int getLength() {
+            return length;
+        }
+    }
+
+    private static Object[] state() {
+        Object[] state = STATE.get();
+        if (state == null) {
+            state = new Object[ALGORITHMS + 3];
+            state[BYTES] = new byte[MAX_REUSED_BUFFER];
+            state[RESULT] = new byte[MAX_DIGEST_LENGTH];
+            state[CHARS] = new char[MAX_DIGEST_LENGTH * 2];
+            STATE.set(state);
+        }
+        return state;
+    }
+
+    private static MessageDigest digest(Object[] state, Algorithm algorithm) {
+        MessageDigest digest = (MessageDigest) state[algorithm.ordinal()];
+        if (digest == null) {
+            try {
+                digest = MessageDigest.getInstance(algorithm.getName());
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            state[algorithm.ordinal()] = digest;
+        }
+        return digest;
+    }
+
+    /**
+     * 把 s[start, end) 按 UTF-8 编码后送入摘要
+     *
+     * @return 需要转小写但遇到不能逐个字符转换的字符时返回 false, 此时摘要未被修改
+     */
+    private static boolean update(Object[] state, MessageDigest digest, CharSequence s, int start, int end, boolean lower) {
+        int max = (end - start) * 3;
+        byte[] out = max <= MAX_REUSED_BUFFER ? (byte[]) state[BYTES] : new byte[max];
+        int n = encode(s, start, end, lower, out);
+        if (n < 0) {
+            return false;
+        }
+        digest.update(out, 0, n);
+        return true;
+    }
+
+    private static String hex(Object[] state, MessageDigest digest, Algorithm algorithm) {
+        byte[] result = (byte[]) state[RESULT];
+        char[] chars = (char[]) state[CHARS];
+        int len = algorithm.getLength();
+        try {
+            digest.digest(result, 0, len);
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+        return new String(chars, 0, hex(result, len, chars));
+    }
+
     /**
      * http://en.gravatar.com/site/implement/images/java/
      */
     public static String hex(byte[] array) {
-        StringBuilder sb = new StringBuilder();
-        for (byte anArray : array) {
-            sb.append(Integer.toHexString((anArray & 0xFF) | 0x100).substring(1, 3));
+        char[] chars = new char[array.length * 2];
+        return new String(chars, 0, hex(array, array.length, chars));
+    }
+
+    /**
+     * 查表把 array 的前 len 个字节编码为小写十六进制写入 out
+     *
+     * @return 写入的字符数
+     */
+    static int hex(byte[] array, int len, char[] out) {
+        for (int i = 0, j = 0; i < len; i++) {
+            int b = array[i] & 0xFF;
+            out[j++] = HEX[b >>> 4];
+            out[j++] = HEX[b & 0x0F];
         }
-        return sb.toString();
+        return len * 2;
     }
 
+    /**
+     * 按 UTF-8 编码后计算 md5, 除了返回的字符串外不分配内存(超过 341 个字符的输入使用临时的缓冲区)
+     */
     public static String md5(String message) {
+        return hash(Algorithm.MD5, message);
+    }
+
+    public static String sha256(String message) {
+        return hash(Algorithm.SHA256, message);
+    }
+
+    /**
+     * 按 UTF-8 编码后计算哈希, 除了返回的字符串外不分配内存
+     */
+    public static String hash(Algorithm algorithm, CharSequence message) {
+        Object[] state = state();
+        MessageDigest digest = digest(state, algorithm);
+        update(state, digest, message, 0, message.length(), false);
+        return hex(state, digest, algorithm);
+    }
+
+    /**
+     * 计算 buffer 中剩余字节的哈希, 之后 buffer 的 position 等于 limit
+     */
+    public static String hash(Algorithm algorithm, ByteBuffer buffer) {
+        Object[] state = state();
+        MessageDigest digest = digest(state, algorithm);
+        digest.update(buffer);
+        return hex(state, digest, algorithm);
+    }
+
+    /**
+     * 读取输入流直到结束并计算哈希, 不关闭输入流
+     */
+    public static String hash(Algorithm algorithm, InputStream in) throws IOException {
+        Object[] state = state();
+        MessageDigest digest = digest(state, algorithm);
+        byte[] buf = new byte[STREAM_BUFFER];
         try {
-            MessageDigest md = MessageDigest.getInstance("MD5");//不是线程安全的，要每次创建
-            return hex(md.digest(message.getBytes("UTF-8")));
-        } catch (NoSuchAlgorithmException ignore) {
-        } catch (UnsupportedEncodingException ignore) {
+            int len;
+            while ((len = in.read(buf)) >= 0) {
+                digest.update(buf, 0, len);
+            }
+        } catch (IOException e) {
+            digest.reset();
+            throw e;
         }
-        return "";
+        return hex(state, digest, algorithm);
+    }
+
+    /**
+     * 去掉首尾空白、转为小写后按 UTF-8 编码计算 md5, 结果和 md5(email.toString().trim().toLowerCase(Locale.ROOT)) 相同.
+     * 去空白、转小写和编码在同一遍中完成, 不创建中间字符串;
+     * 只有遇到转小写时会改变长度或依赖上下文的字符(U+0130 'İ'、U+03A3 'Σ')时才退回 String.toLowerCase.
+     */
+    public static String md5Normalized(CharSequence email) {
+        return hashNormalized(Algorithm.MD5, email);
+    }
+
+    /**
+     * 同 {@link #md5Normalized(CharSequence)}, 使用指定的算法
+     */
+    public static String hashNormalized(Algorithm algorithm, CharSequence email) {
+        int start = 0;
+        int end = email.length();
+        while (start < end && email.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && email.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        Object[] state = state();
+        MessageDigest digest = digest(state, algorithm);
+        if (!update(state, digest, email, start, end, true)) {
+            String lower = email.subSequence(start, end).toString().toLowerCase(Locale.ROOT);
+            update(state, digest, lower, 0, lower.length(), false);
+        }
+        return hex(state, digest, algorithm);
+    }
+
+    /**
+     * 先查缓存, 未命中时计算 md5 并放入缓存. 缓存以原始的 message 为键, 不做任何规范化,
+     * 大小写或首尾空白不同的同一个邮箱各占一项; 需要按规范化后的邮箱缓存时用 {@link #md5Normalized(CharSequence, BoundedCache)}
+     *
+     * @param cache 邮箱到哈希的缓存, 为 null 时直接计算
+     */
+    public static String md5(String message, BoundedCache<String, String> cache) {
+        if (cache == null) {
+            return md5(message);
+        }
+        String hash = cache.get(message);
+        if (hash == null) {
+            hash = md5(message);
+            cache.put(message, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * 去掉首尾空白、转为小写后先查缓存, 未命中时计算 md5 并放入缓存, 结果和 {@link #md5Normalized(CharSequence)} 相同.
+     * 缓存以规范化后的邮箱为键, 同一个邮箱的不同写法共用一项
+     *
+     * @param cache 规范化后的邮箱到哈希的缓存, 为 null 时直接计算
+     */
+    public static String md5Normalized(CharSequence email, BoundedCache<String, String> cache) {
+        if (cache == null) {
+            return md5Normalized(email);
+        }
+        String key = email.toString().trim().toLowerCase(Locale.ROOT);
+        String hash = cache.get(key);
+        if (hash == null) {
+            hash = md5(key);
+            cache.put(key, hash);
+        }
+        return hash;
     }
 
     public static void main(String[] args) {
         System.out.println(md5("lin123456陈"));//ba92703368beaba9faa2b2613cfebae2
     }
+
+    /**
+     * 和 String.getBytes("UTF-8") 一样把 s[start, end) 编码到 out 中, 不成对的代理字符编码为 '?'
+     *
+     * @param lower 是否同时按 Locale.ROOT 转为小写
+     * @param out   至少 (end - start) * 3 字节
+     * @return 字节数; 需要转小写但遇到不能逐个字符转换的字符时返回 -1
+     */
+    private static int encode(CharSequence s, int start, int end, boolean lower, byte[] out) {
+        int n = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (lower && c >= 'A' && c <= 'Z') {
+                    c += 'a' - 'A';
+                }
+                out[n++] = (byte) c;
+                continue;
+            }
+            if (lower) {
+                if (c == '\u0130' || c == '\u03A3') {
+                    return -1;
+                }
+                if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                    if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+                        int cp = Character.toCodePoint(c, s.charAt(i + 1));
+                        if (Character.toLowerCase(cp) != cp) {
+                            return -1;
+                        }
+                    }
+                } else {
+                    c = Character.toLowerCase(c);
+                }
+            }
+            if (c < 0x80) {
+                out[n++] = (byte) c;
+            } else if (c < 0x800) {
+                out[n++] = (byte) (0xC0 | c >> 6);
+                out[n++] = (byte) (0x80 | c & 0x3F);
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                char low;
+                if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(low = s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, low);
+                    out[n++] = (byte) (0xF0 | cp >> 18);
+                    out[n++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                    out[n++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                    out[n++] = (byte) (0x80 | cp & 0x3F);
+                    i++;
+                } else {
+                    out[n++] = '?';
+                }
+            } else {
+                out[n++] = (byte) (0xE0 | c >> 12);
+                out[n++] = (byte) (0x80 | c >> 6 & 0x3F);
+                out[n++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        return n;
+    }
 }
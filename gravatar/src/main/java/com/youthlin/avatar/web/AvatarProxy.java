@@ -0,0 +1,651 @@
+package com.youthlin.avatar.web;
+
+import com.youthlin.avatar.BoundedCache;
+import com.youthlin.avatar.Gravatar;
+import com.youthlin.avatar.HashUtil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 头像缓存代理: 把 Gravatar 的头像缓存在本地磁盘上, 页面不再依赖上游的延迟.
+ * <p>
+ * 按 (哈希, 大小, 默认头像, 强制默认, 分级) 记录元数据, 图片内容按内容的 md5 命名保存, 相同的图片(如默认头像)只存一份.
+ * 同一个头像同时未命中时只请求一次上游; 缓存过期后先返回旧的内容, 同时在后台用 ETag/If-Modified-Since 向上游确认.
+ * <p>
+ * 内存中的条目数、磁盘上的总大小和保留时间都有上限, 后台定期清理; 大小限制在 1~2048,
+ * 默认头像只接受 {@link Gravatar.DefaultType} 和 {@link #allowDefaults(String...)} 中的地址, 避免任意请求无限制地占用缓存.
+ * <pre>
+ * AvatarProxy proxy = AvatarProxy.newInstance(new File("/var/cache/avatar")).maxAge(1, TimeUnit.DAYS);
+ * AvatarProxy.Entry entry = proxy.get(HashUtil.md5Normalized(email), 80, "identicon");
+ * proxy.transferTo(entry, channel);
+ * </pre>
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class AvatarProxy {
+    public static final long DEFAULT_MAX_AGE = TimeUnit.HOURS.toMillis(1);
+    public static final int MAX_SIZE = 2048;
+    private static final String META_SUFFIX = ".properties";
+    private static final int DEFAULT_MEMORY_ENTRIES = 10000;
+    private static final long DEFAULT_MAX_DISK_BYTES = 256L * 1024 * 1024;
+    private static final long DEFAULT_RETENTION = TimeUnit.DAYS.toMillis(30);
+    private static final long SWEEP_INTERVAL = TimeUnit.MINUTES.toMillis(10);
+    /**
+     * 刚写入还没有元数据引用的内容文件不算孤立文件
+     */
+    private static final long ORPHAN_GRACE = TimeUnit.MINUTES.toMillis(5);
+    /**
+     * Gravatar 的分级参数 r 可以取的值
+     */
+    private static final Set<String> RATINGS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList("g", "pg", "r", "x")));
+    private final File dataDir;
+    private final File metaDir;
+    private volatile BoundedCache<String, Entry> entries = new BoundedCache<String, Entry>(DEFAULT_MEMORY_ENTRIES);
+    /**
+     * 正在请求上游的 key, 同一个 key 的并发请求等待同一个结果
+     */
+    private final ConcurrentMap<String, FutureTask<Entry>> pending = new ConcurrentHashMap<String, FutureTask<Entry>>();
+    /**
+     * 已提交后台确认的 key, 避免重复提交
+     */
+    private final ConcurrentMap<String, Boolean> revalidating = new ConcurrentHashMap<String, Boolean>();
+    private String upstream = Gravatar.PREFIX;
+    private long maxAge = DEFAULT_MAX_AGE;
+    private int connectTimeout = 3000;
+    private int readTimeout = 5000;
+    private ExecutorService executor;
+    private boolean ownExecutor;
+    private volatile Set<String> allowedDefaults = Collections.emptySet();
+    private long maxDiskBytes = DEFAULT_MAX_DISK_BYTES;
+    private long retention = DEFAULT_RETENTION;
+    private final AtomicLong lastSweep = new AtomicLong();
+
+    private AvatarProxy(File directory) {
+        dataDir = new File(directory, "data");
+        metaDir = new File(directory, "meta");
+        if (!dataDir.isDirectory() && !dataDir.mkdirs() || !metaDir.isDirectory() && !metaDir.mkdirs()) {
+            throw new IllegalArgumentException("Can not create cache directory: " + directory.getAbsolutePath());
+        }
+    }
+
+    public static AvatarProxy newInstance(File directory) {
+        return new AvatarProxy(directory);
+    }
+
+    /**
+     * 上游地址前缀, 默认 {@link Gravatar#PREFIX}
+     */
+    public AvatarProxy upstream(String prefix) {
+        this.upstream = prefix;
+        return this;
+    }
+
+    /**
+     * 缓存多久后需要向上游确认, 默认 1 小时
+     */
+    public AvatarProxy maxAge(long duration, TimeUnit unit) {
+        this.maxAge = unit.toMillis(duration);
+        return this;
+    }
+
+    /**
+     * 除了 {@link Gravatar.DefaultType} 之外允许作为默认头像的地址
+     */
+    public AvatarProxy allowDefaults(String... urls) {
+        this.allowedDefaults = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(urls)));
+        return this;
+    }
+
+    /**
+     * 内存中最多保存的条目数, 默认 10000; 超出的条目需要时从磁盘读取
+     */
+    public AvatarProxy memoryEntries(int count) {
+        this.entries = new BoundedCache<String, Entry>(count);
+        return this;
+    }
+
+    /**
+     * 磁盘缓存的上限: 内容文件的总字节数(默认 256M)和条目的保留时间(默认 30 天), 超出时由 {@link #sweep()} 删除最旧的
+     */
+    public AvatarProxy diskLimit(long maxBytes, long retention, TimeUnit unit) {
+        this.maxDiskBytes = maxBytes;
+        this.retention = unit.toMillis(retention);
+        return this;
+    }
+
+    public AvatarProxy timeout(int connectMillis, int readMillis) {
+        this.connectTimeout = connectMillis;
+        this.readTimeout = readMillis;
+        return this;
+    }
+
+    /**
+     * 后台确认使用的线程池, 默认使用内部的 2 个守护线程. 外部的线程池不会被 {@link #shutdown()} 关闭.
+     */
+    public synchronized AvatarProxy executor(ExecutorService executor) {
+        shutdown();
+        this.executor = executor;
+        this.ownExecutor = false;
+        return this;
+    }
+
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * 取得头像, 本地没有时从上游下载(阻塞); 本地已过期时直接返回并在后台确认
+     *
+     * @param hash     邮箱的哈希
+     * @param size     边长, 不大于 0 时不指定, 大于 2048 时按 2048
+     * @param defaults 默认头像类型({@link Gravatar.DefaultType#getDesc()})或 {@link #allowDefaults(String...)} 中的地址, 可以为 null
+     * @throws IOException              本地没有且上游请求失败
+     * @throws IllegalArgumentException 默认头像不在允许的范围内
+     */
+    public Entry get(String hash, int size, String defaults) throws IOException {
+        return get(hash, size, defaults, false, null);
+    }
+
+    /**
+     * 同 {@link #get(String, int, String)}, 对应 Gravatar 地址中的 f(forcedefault) 和 r(rating) 参数
+     *
+     * @param forceDefault 是否总是返回默认头像, 见 {@link Gravatar#defaultsForce()}
+     * @param rating       分级 g/pg/r/x, 可以为 null
+     * @throws IllegalArgumentException 默认头像不在允许的范围内或分级无效
+     */
+    public Entry get(String hash, int size, String defaults, boolean forceDefault, String rating) throws IOException {
+        if (defaults != null && !Gravatar.DefaultType.ALL_TYPE.contains(defaults) && !allowedDefaults.contains(defaults)) {
+            throw new IllegalArgumentException("Default image not allowed: " + defaults);
+        }
+        if (rating != null && !RATINGS.contains(rating)) {
+            throw new IllegalArgumentException("Invalid rating: " + rating);
+        }
+        Request request = new Request(hash, size, defaults, forceDefault, rating);
+        BoundedCache<String, Entry> entries = this.entries;
+        Entry entry = entries.get(request.key);
+        if (entry != null && entry.file != null && !entry.file.isFile()) {
+            entries.remove(request.key);//内容文件已被清理
+            entry = null;
+        }
+        if (entry == null) {
+            entry = load(request.key);
+            if (entry != null) {
+                entries.put(request.key, entry);
+            }
+        }
+        if (entry == null) {
+            return fetch(request, null);
+        }
+        if (System.currentTimeMillis() - entry.fetched > maxAge) {
+            revalidate(request, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * 把头像内容写入 target. target 是 SocketChannel 或 FileChannel 时由操作系统直接复制, 不经过堆内存
+     *
+     * @return 写出的字节数
+     */
+    public long transferTo(Entry entry, WritableByteChannel target) throws IOException {
+        if (entry.file == null) {
+            return 0;
+        }
+        FileInputStream in = new FileInputStream(entry.file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                position += channel.transferTo(position, size - position, target);
+            }
+            return size;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 清理磁盘缓存: 删除超过保留时间的条目和不再被引用的内容文件, 总大小超出上限时从最旧的内容文件开始删除.
+     * 通常不需要手动调用, 写入新内容时每 10 分钟会在后台执行一次.
+     */
+    public void sweep() {
+        long now = System.currentTimeMillis();
+        lastSweep.set(now);
+        Set<String> referenced = new HashSet<String>();
+        File[] metas = metaDir.listFiles();
+        for (File meta : metas == null ? new File[0] : metas) {
+            String name = meta.getName();
+            if (!name.endsWith(META_SUFFIX)) {
+                if (now - meta.lastModified() > ORPHAN_GRACE) {
+                    delete(meta);//写到一半的临时文件
+                }
+                continue;
+            }
+            String key = name.substring(0, name.length() - META_SUFFIX.length());
+            Entry entry = load(key);
+            if (entry == null || now - entry.fetched > retention) {
+                delete(meta);
+                entries.remove(key);
+            } else if (entry.file != null) {
+                referenced.add(entry.file.getName());
+            }
+        }
+        File[] files = dataDir.listFiles();
+        List<File> data = new ArrayList<File>();
+        long total = 0;
+        for (File file : files == null ? new File[0] : files) {
+            if (now - file.lastModified() > ORPHAN_GRACE && !referenced.contains(file.getName())) {
+                delete(file);//重新确认后被替换的旧内容, 或者写到一半的临时文件
+            } else {
+                data.add(file);
+                total += file.length();
+            }
+        }
+        if (total <= maxDiskBytes) {
+            return;
+        }
+        Collections.sort(data, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                long l1 = o1.lastModified();
+                long l2 = o2.lastModified();
+                return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+            }
+        });
+        //引用被删除内容的元数据在读取时视为未命中, 下次清理时删除
+        for (int i = 0; i < data.size() && total > maxDiskBytes; i++) {
+            File file = data.get(i);
+            long length = file.length();
+            if (delete(file)) {
+                total -= length;
+            }
+        }
+    }
+
+    private static boolean delete(File file) {
+        return file.delete() || !file.exists();
+    }
+
+    private void sweepIfDue() {
+        long last = lastSweep.get();
+        long now = System.currentTimeMillis();
+        if (now - last < SWEEP_INTERVAL || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        try {
+            executor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    sweep();
+                }
+            });
+        } catch (RejectedExecutionException ignore) {
+        }
+    }
+
+    /**
+     * 关闭内部创建的线程池
+     */
+    public synchronized void shutdown() {
+        if (executor != null && ownExecutor) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    //region upstream
+    /**
+     * 请求上游, 同一个 key 同时只有一个请求, 其他调用者等待它的结果
+     */
+    private Entry fetch(final Request request, final Entry old) throws IOException {
+        FutureTask<Entry> task = new FutureTask<Entry>(new Callable<Entry>() {
+            @Override
+            public Entry call() throws Exception {
+                return download(request, old);
+            }
+        });
+        FutureTask<Entry> existing = pending.putIfAbsent(request.key, task);
+        if (existing == null) {
+            try {
+                task.run();
+            } finally {
+                pending.remove(request.key, task);
+            }
+        } else {
+            task = existing;
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private void revalidate(final Request request, final Entry old) {
+        if (pending.containsKey(request.key) || revalidating.putIfAbsent(request.key, Boolean.TRUE) != null) {
+            return;
+        }
+        try {
+            executor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        fetch(request, old);
+                    } catch (IOException ignore) {
+                        //上游不可用时继续使用旧的内容, 下次访问再确认
+                    } finally {
+                        revalidating.remove(request.key);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            revalidating.remove(request.key);//线程池已关闭, 继续使用旧的内容
+        }
+    }
+
+    private synchronized ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "avatar-proxy-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            ownExecutor = true;
+        }
+        return executor;
+    }
+
+    private Entry download(Request request, Entry old) throws IOException {
+        Gravatar gravatar = Gravatar.withHash(request.hash).prefix(upstream).size(request.size);
+        if (request.defaults != null) {
+            if (Gravatar.DefaultType.ALL_TYPE.contains(request.defaults)) {
+                gravatar.defaultsType(request.defaults);
+            } else {
+                gravatar.defaults(request.defaults);
+            }
+        }
+        if (request.forceDefault) {
+            gravatar.defaultsForce();
+        }
+        String url = gravatar.getUrl();
+        if (request.rating != null) {
+            url += (url.indexOf('?') < 0 ? "?r=" : "&r=") + request.rating;
+        }
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setConnectTimeout(connectTimeout);
+        conn.setReadTimeout(readTimeout);
+        if (old != null) {
+            if (old.upstreamETag != null) {
+                conn.setRequestProperty("If-None-Match", old.upstreamETag);
+            }
+            if (old.lastModified > 0) {
+                conn.setIfModifiedSince(old.lastModified);
+            }
+        }
+        int code = conn.getResponseCode();
+        long now = System.currentTimeMillis();
+        Entry entry;
+        if (code == HttpURLConnection.HTTP_NOT_MODIFIED && old != null) {
+            drain(conn.getErrorStream());
+            entry = new Entry(old.status, old.file, old.contentType, old.upstreamETag, old.lastModified, now);
+        } else if (code == HttpURLConnection.HTTP_OK) {
+            File file = store(conn.getInputStream());
+            entry = new Entry(code, file, conn.getContentType(), conn.getHeaderField("ETag"), conn.getLastModified(), now);
+        } else if (code == HttpURLConnection.HTTP_NOT_FOUND) {
+            //d=404 时上游用 404 表示没有头像, 同样缓存
+            drain(conn.getErrorStream());
+            entry = new Entry(code, null, null, conn.getHeaderField("ETag"), conn.getLastModified(), now);
+        } else {
+            drain(conn.getErrorStream());
+            throw new IOException("Unexpected response " + code + " from " + url);
+        }
+        saveMeta(request.key, entry);
+        entries.put(request.key, entry);
+        sweepIfDue();
+        return entry;
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        if (in == null) {
+            return;
+        }
+        try {
+            byte[] buf = new byte[4096];
+            //noinspection StatementWithEmptyBody
+            while (in.read(buf) >= 0) {
+            }
+        } finally {
+            in.close();
+        }
+    }
+    //endregion upstream
+
+    //region disk
+    /**
+     * 先写入临时文件, 同时计算 md5, 再改名为 md5; 已有相同内容时丢弃临时文件
+     */
+    private File store(InputStream in) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        File temp = File.createTempFile("avatar", ".tmp", dataDir);
+        try {
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                byte[] buf = new byte[8192];
+                int len;
+                while ((len = in.read(buf)) >= 0) {
+                    digest.update(buf, 0, len);
+                    out.write(buf, 0, len);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        File file = new File(dataDir, HashUtil.hex(digest.digest()));
+        if (file.exists()) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            //noinspection ResultOfMethodCallIgnored
+            file.setLastModified(System.currentTimeMillis());//按修改时间清理, 重新写入的内容算作最新
+        } else if (!temp.renameTo(file) && !file.exists()) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw new IOException("Can not write cache file: " + file.getAbsolutePath());
+        }
+        return file;
+    }
+
+    private void saveMeta(String key, Entry entry) throws IOException {
+        Properties meta = new Properties();
+        meta.setProperty("status", String.valueOf(entry.status));
+        meta.setProperty("fetched", String.valueOf(entry.fetched));
+        meta.setProperty("lastModified", String.valueOf(entry.lastModified));
+        if (entry.file != null) {
+            meta.setProperty("content", entry.file.getName());
+        }
+        if (entry.contentType != null) {
+            meta.setProperty("contentType", entry.contentType);
+        }
+        if (entry.upstreamETag != null) {
+            meta.setProperty("etag", entry.upstreamETag);
+        }
+        File temp = File.createTempFile(key, ".tmp", metaDir);
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            meta.store(out, null);
+        } finally {
+            out.close();
+        }
+        File file = new File(metaDir, key + META_SUFFIX);
+        if (!temp.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw new IOException("Can not write cache file: " + file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * @return 磁盘上的元数据, 没有或内容文件已被删除时返回 null
+     */
+    private Entry load(String key) {
+        File file = new File(metaDir, key + META_SUFFIX);
+        if (!file.isFile()) {
+            return null;
+        }
+        Properties meta = new Properties();
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                meta.load(in);
+            } finally {
+                in.close();
+            }
+            int status = Integer.parseInt(meta.getProperty("status"));
+            String content = meta.getProperty("content");
+            File data = content == null ? null : new File(dataDir, content);
+            if (status == HttpURLConnection.HTTP_OK && (data == null || !data.isFile())) {
+                return null;
+            }
+            return new Entry(status, data, meta.getProperty("contentType"), meta.getProperty("etag"),
+                    Long.parseLong(meta.getProperty("lastModified", "0")), Long.parseLong(meta.getProperty("fetched", "0")));
+        } catch (IOException e) {
+            return null;
+        } catch (RuntimeException e) {//文件损坏
+            return null;
+        }
+    }
+    //endregion disk
+
+    private static final class Request {
+        private final String hash;
+        private final int size;
+        private final String defaults;
+        private final boolean forceDefault;
+        private final String rating;
+        private final String key;
+
+        private Request(String hash, int size, String defaults, boolean forceDefault, String rating) {
+            this.hash = hash.toLowerCase();
+            this.size = size <= 0 ? 0 : Math.min(size, MAX_SIZE);
+            this.defaults = defaults;
+            this.forceDefault = forceDefault;
+            this.rating = rating;
+            //默认头像可能含有 '/', 放在最后
+            this.key = HashUtil.md5(this.hash + '/' + this.size + '/' + (forceDefault ? 'y' : 'n') + '/'
+                    + (rating == null ? "" : rating) + '/' + (defaults == null ? "" : defaults));
+        }
+    }
+
+    /**
+     * 缓存的一个头像. 不可变, 重新确认后会替换为新的对象
+     */
+    public static final class Entry {
+        private final int status;
+        private final File file;
+        private final String contentType;
+        private final String upstreamETag;
+        private final long lastModified;
+        private final long fetched;
+
+        private Entry(int status, File file, String contentType, String upstreamETag, long lastModified, long fetched) {
+            this.status = status;
+            this.file = file;
+            this.contentType = contentType;
+            this.upstreamETag = upstreamETag;
+            this.lastModified = lastModified;
+            this.fetched = fetched;
+        }
+
+        /**
+         * 是否有头像; 请求 d=404 且上游没有头像时为 false
+         */
+        public boolean isFound() {
+            return file != null;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getLength() {
+            return file == null ? 0 : file.length();
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * 内容的 md5, 可以直接用作强 ETag
+         */
+        public String getContentHash() {
+            return file == null ? null : file.getName();
+        }
+
+        /**
+         * @return 上游的 Last-Modified, 没有时为 0
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return 最近一次从上游获取或确认的时间
+         */
+        public long getFetched() {
+            return fetched;
+        }
+    }
+}
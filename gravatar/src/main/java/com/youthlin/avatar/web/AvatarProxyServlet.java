@@ -0,0 +1,173 @@
+package com.youthlin.avatar.web;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 头像缓存代理的 Servlet, 地址格式和 Gravatar 相同: /{hash}[.ext]?s=80&amp;d=identicon&amp;f=y&amp;r=g
+ * <p>
+ * 初始化参数:
+ * <ul>
+ * <li>directory: 缓存目录, 默认 ${java.io.tmpdir}/avatar</li>
+ * <li>upstream: 上游地址前缀, 默认 https://www.gravatar.com/avatar/</li>
+ * <li>maxAge: 缓存确认间隔(秒), 也用作响应的 Cache-Control, 默认 3600</li>
+ * <li>allowDefaults: 除了 Gravatar 内置类型外允许的默认头像地址, 逗号分隔; 其他的 d 参数返回 400</li>
+ * </ul>
+ * 大小参数限制在 1~2048, 分级参数只接受 g/pg/r/x.
+ * 把 {@link com.youthlin.avatar.Gravatar#prefix(String)} 设置为这个 Servlet 的地址即可.
+ */
+public class AvatarProxyServlet extends HttpServlet {
+    private static final long serialVersionUID = -4035460385416473614L;
+    private transient AvatarProxy proxy;
+
+    @Override
+    public void init() throws ServletException {
+        String directory = getInitParameter("directory");
+        File dir = directory != null ? new File(directory) : new File(System.getProperty("java.io.tmpdir"), "avatar");
+        try {
+            proxy = AvatarProxy.newInstance(dir);
+        } catch (IllegalArgumentException e) {
+            throw new ServletException(e);
+        }
+        String upstream = getInitParameter("upstream");
+        if (upstream != null) {
+            proxy.upstream(upstream);
+        }
+        String allowDefaults = getInitParameter("allowDefaults");
+        if (allowDefaults != null) {
+            List<String> urls = new ArrayList<String>();
+            for (String url : allowDefaults.split(",")) {
+                if (url.trim().length() > 0) {
+                    urls.add(url.trim());
+                }
+            }
+            proxy.allowDefaults(urls.toArray(new String[urls.size()]));
+        }
+        String maxAge = getInitParameter("maxAge");
+        if (maxAge != null) {
+            proxy.maxAge(Long.parseLong(maxAge.trim()), TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        String hash = hash(req.getPathInfo());
+        if (hash == null) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        AvatarProxy.Entry entry;
+        try {
+            entry = proxy.get(hash, size(req), param(req, "d", "default"), forceDefault(req), param(req, "r", "rating"));
+        } catch (IllegalArgumentException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        } catch (IOException e) {
+            log("Can not fetch avatar: " + hash, e);
+            resp.sendError(HttpServletResponse.SC_BAD_GATEWAY);
+            return;
+        }
+        resp.setHeader("Cache-Control", "public, max-age=" + proxy.getMaxAge() / 1000);
+        if (!entry.isFound()) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        String etag = '"' + entry.getContentHash() + '"';
+        resp.setHeader("ETag", etag);
+        if (entry.getLastModified() > 0) {
+            resp.setDateHeader("Last-Modified", entry.getLastModified());
+        }
+        if (notModified(req, etag, entry.getLastModified())) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        if (entry.getContentType() != null) {
+            resp.setContentType(entry.getContentType());
+        }
+        resp.setContentLength((int) entry.getLength());
+        if (!"HEAD".equals(req.getMethod())) {
+            proxy.transferTo(entry, Channels.newChannel(resp.getOutputStream()));
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (proxy != null) {
+            proxy.shutdown();
+        }
+    }
+
+    private static boolean notModified(HttpServletRequest req, String etag, long lastModified) {
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return ifNoneMatch.trim().equals("*") || ifNoneMatch.contains(etag);
+        }
+        long since;
+        try {
+            since = req.getDateHeader("If-Modified-Since");
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        //HTTP 日期只精确到秒
+        return since > 0 && lastModified > 0 && lastModified / 1000 <= since / 1000;
+    }
+
+    /**
+     * @return 路径中的哈希, 去掉扩展名; 不是 32 或 64 位十六进制时返回 null
+     */
+    private static String hash(String path) {
+        if (path == null) {
+            return null;
+        }
+        int start = path.startsWith("/") ? 1 : 0;
+        int end = path.indexOf('.', start);
+        String hash = path.substring(start, end < 0 ? path.length() : end);
+        if (hash.length() != 32 && hash.length() != 64) {
+            return null;
+        }
+        for (int i = 0; i < hash.length(); i++) {
+            char c = hash.charAt(i);
+            //Character.digit 也接受全角字母和其他语言的数字
+            if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F')) {
+                return null;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * @return 1~2048, 没有或不是数字时返回 0 表示不指定
+     */
+    private static int size(HttpServletRequest req) {
+        String size = param(req, "s", "size");
+        if (size == null) {
+            return 0;
+        }
+        try {
+            return Math.max(1, Math.min(AvatarProxy.MAX_SIZE, Integer.parseInt(size.trim())));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * f=y 或 forcedefault=y 时总是返回默认头像
+     */
+    private static boolean forceDefault(HttpServletRequest req) {
+        String force = param(req, "f", "forcedefault");
+        return force != null && (force.equalsIgnoreCase("y") || force.equalsIgnoreCase("yes") || force.equalsIgnoreCase("true"));
+    }
+
+    private static String param(HttpServletRequest req, String name, String alias) {
+        String value = req.getParameter(name);
+        return value != null ? value : req.getParameter(alias);
+    }
+}
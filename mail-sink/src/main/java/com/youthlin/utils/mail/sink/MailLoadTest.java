@@ -0,0 +1,434 @@
+package com.youthlin.utils.mail.sink;
+
+import com.youthlin.utils.mail.MailSender;
+import com.youthlin.utils.mail.VirtualThreads;
+import com.youthlin.utils.mail.nio.SmtpEngine;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 发信压测: 以指定的并发用 MailSender 向 {@link SmtpSink} 发送邮件,
+ * 报告吞吐量、延迟分位数和每封邮件的内存分配.
+ * <pre>
+ * java -cp ... com.youthlin.utils.mail.sink.MailLoadTest mode=payload messages=20000 concurrency=16 size=4096 tls=true
+ * </pre>
+ * 参数(均可省略): mode=transport|payload|engine, messages, warmup, concurrency, size(正文字节数), recipients,
+ * latency(服务器延迟毫秒), failure(服务器拒绝邮件的概率), reject(服务器拒绝收件人的概率), tls=true|false,
+ * virtual=true|false(在虚拟线程中发送, 需要 JDK 21+).
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class MailLoadTest {
+    /**
+     * 发送方式
+     */
+    public enum Mode {
+        /**
+         * MailSender.send(): 每封邮件新建一个连接
+         */
+        TRANSPORT,
+        /**
+         * 序列化为 MailPayload 后在每个线程各自的长连接上发送
+         */
+        PAYLOAD,
+        /**
+         * 交给非阻塞的 SmtpEngine 发送, 并发数是同时等待应答的邮件数
+         */
+        ENGINE
+    }
+
+    private final SmtpSink sink;
+    private Mode mode = Mode.PAYLOAD;
+    private int messages = 10000;
+    private int warmup = 1000;
+    private int concurrency = 8;
+    private int bodySize = 1024;
+    private int recipients = 1;
+    private boolean virtualThreads;
+
+    private MailLoadTest(SmtpSink sink) {
+        this.sink = sink;
+    }
+
+    public static MailLoadTest newInstance(SmtpSink sink) {
+        return new MailLoadTest(sink);
+    }
+
+    public MailLoadTest mode(Mode mode) {
+        this.mode = mode;
+        return this;
+    }
+
+    public MailLoadTest messages(int messages) {
+        this.messages = messages;
+        return this;
+    }
+
+    /**
+     * 正式计时之前预热发送的邮件数
+     */
+    public MailLoadTest warmup(int warmup) {
+        this.warmup = warmup;
+        return this;
+    }
+
+    public MailLoadTest concurrency(int concurrency) {
+        this.concurrency = Math.max(1, concurrency);
+        return this;
+    }
+
+    public MailLoadTest bodySize(int bodySize) {
+        this.bodySize = bodySize;
+        return this;
+    }
+
+    public MailLoadTest recipients(int recipients) {
+        this.recipients = Math.max(1, recipients);
+        return this;
+    }
+
+    /**
+     * 在虚拟线程中发送(JDK 21+, 不支持时仍使用平台线程). 虚拟线程的内存分配无法统计.
+     */
+    public MailLoadTest virtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads && VirtualThreads.isSupported();
+        return this;
+    }
+
+    public Result run() throws Exception {
+        final Session session = sink.newSession();
+        SmtpEngine engine = null;
+        if (mode == Mode.ENGINE) {
+            SmtpEngine.Builder builder = SmtpEngine.newBuilder().host(sink.getHost()).port(sink.getPort())
+                    .maxConnections(concurrency).localHost("localhost");
+            if (sink.getClientSslContext() != null) {
+                builder.startTls(true).sslContext(sink.getClientSslContext());
+            }
+            engine = builder.start();
+        }
+        try {
+            final String body = body(bodySize);
+            final Address[] to = new Address[recipients];
+            for (int i = 0; i < recipients; i++) {
+                to[i] = new InternetAddress("user" + i + "@example.com");
+            }
+            Runner runner = new Runner(session, engine, body, to);
+            runner.run(warmup, null);
+            long[] latencies = new long[messages];
+            Map<Long, Long> before = Allocation.snapshot("smtp-engine-");
+            long start = System.nanoTime();
+            runner.run(messages, latencies);
+            long elapsed = System.nanoTime() - start;
+            long allocated = runner.allocated.get();
+            Map<Long, Long> after = Allocation.snapshot("smtp-engine-");
+            for (Map.Entry<Long, Long> entry : after.entrySet()) {
+                Long old = before.get(entry.getKey());
+                allocated += entry.getValue() - (old == null ? 0 : old);
+            }
+            latencies = succeeded(latencies);
+            Arrays.sort(latencies);
+            return new Result(mode, virtualThreads, messages, concurrency, runner.failures.get(), elapsed, latencies,
+                    Allocation.isSupported() && !virtualThreads ? allocated : -1);
+        } finally {
+            if (engine != null) {
+                engine.close();
+            }
+        }
+    }
+
+    /**
+     * 去掉发送失败(记为 -1)的邮件, 只统计成功发送的延迟
+     */
+    private static long[] succeeded(long[] latencies) {
+        int n = 0;
+        for (long latency : latencies) {
+            if (latency >= 0) {
+                latencies[n++] = latency;
+            }
+        }
+        return n == latencies.length ? latencies : Arrays.copyOf(latencies, n);
+    }
+
+    private static String body(int size) {
+        StringBuilder sb = new StringBuilder(size + 80);
+        while (sb.length() < size) {
+            sb.append("The quick brown fox jumps over the lazy dog. 0123456789\r\n");
+        }
+        sb.setLength(size);
+        return sb.toString();
+    }
+
+    /**
+     * 一轮发送: concurrency 个线程共同发送 count 封邮件
+     */
+    private class Runner {
+        private final Session session;
+        private final SmtpEngine engine;
+        private final String body;
+        private final Address[] to;
+        private final AtomicInteger failures = new AtomicInteger();
+        private final AtomicLong allocated = new AtomicLong();
+
+        Runner(Session session, SmtpEngine engine, String body, Address[] to) {
+            this.session = session;
+            this.engine = engine;
+            this.body = body;
+            this.to = to;
+        }
+
+        void run(final int count, final long[] latencies) throws InterruptedException {
+            failures.set(0);
+            allocated.set(0);
+            final AtomicInteger next = new AtomicInteger();
+            List<Thread> threads = new ArrayList<Thread>(concurrency);
+            for (int t = 0; t < concurrency; t++) {
+                Runnable task = new Runnable() {
+                    @Override
+                    public void run() {
+                        long allocation = Allocation.current();
+                        Transport transport = null;
+                        try {
+                            int i;
+                            while ((i = next.getAndIncrement()) < count) {
+                                long start = System.nanoTime();
+                                boolean success;
+                                try {
+                                    if (mode == Mode.PAYLOAD && transport == null) {
+                                        transport = session.getTransport("smtp");
+                                        transport.connect();
+                                    }
+                                    success = send(i, transport);
+                                } catch (MessagingException e) {
+                                    success = false;
+                                }
+                                if (!success) {
+                                    failures.incrementAndGet();
+                                    //连接可能已经不可用, 下一封邮件重新连接
+                                    close(transport);
+                                    transport = null;
+                                }
+                                if (latencies != null) {
+                                    latencies[i] = success ? System.nanoTime() - start : -1;
+                                }
+                            }
+                        } finally {
+                            allocated.addAndGet(Allocation.current() - allocation);
+                            close(transport);
+                        }
+                    }
+                };
+                if (virtualThreads) {
+                    threads.add(VirtualThreads.start("mail-load-" + t, task));
+                } else {
+                    Thread thread = new Thread(task, "mail-load-" + t);
+                    thread.start();
+                    threads.add(thread);
+                }
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+
+        private void close(Transport transport) {
+            if (transport != null) {
+                try {
+                    transport.close();
+                } catch (MessagingException ignore) {
+                }
+            }
+        }
+
+        private boolean send(int i, Transport transport) {
+            try {
+                MailSender sender = MailSender.newInstance(session)
+                        .from("load@example.com")
+                        .to(to)
+                        .subject("Load test " + i)
+                        .text(body);
+                switch (mode) {
+                    case TRANSPORT:
+                        sender.send();
+                        return true;
+                    case PAYLOAD:
+                        sender.toPayload().send(transport, null, to);
+                        return true;
+                    default:
+                        return sender.sendAndWait(engine).isSuccess();
+                }
+            } catch (Exception e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 压测结果
+     */
+    public static final class Result {
+        private final Mode mode;
+        private final boolean virtualThreads;
+        private final int messages;
+        private final int concurrency;
+        private final int failures;
+        private final long elapsedNanos;
+        private final long[] latencies;//已排序
+        private final long allocatedBytes;
+
+        private Result(Mode mode, boolean virtualThreads, int messages, int concurrency, int failures,
+                       long elapsedNanos, long[] latencies, long allocatedBytes) {
+            this.mode = mode;
+            this.virtualThreads = virtualThreads;
+            this.messages = messages;
+            this.concurrency = concurrency;
+            this.failures = failures;
+            this.elapsedNanos = elapsedNanos;
+            this.latencies = latencies;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        public int getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return 每秒发送的邮件数
+         */
+        public double getThroughput() {
+            return messages * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * @param percentile 0~100
+         * @return 延迟分位数, 纳秒
+         */
+        public long getLatency(double percentile) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+            return latencies[Math.min(latencies.length - 1, Math.max(0, index))];
+        }
+
+        /**
+         * @return 每封邮件在发送线程(和事件循环线程)中分配的字节数, JVM 不支持统计时返回 -1
+         */
+        public long getAllocatedBytesPerMessage() {
+            return allocatedBytes < 0 || messages == 0 ? -1 : allocatedBytes / messages;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH, "mode=%s threads=%s messages=%d concurrency=%d failures=%d%n"
+                            + "throughput: %.1f msg/s%n"
+                            + "latency: p50=%.3fms p99=%.3fms max=%.3fms%n"
+                            + "allocation: %s",
+                    mode, virtualThreads ? "virtual" : "platform", messages, concurrency, failures, getThroughput(),
+                    getLatency(50) / 1e6, getLatency(99) / 1e6, getLatency(100) / 1e6,
+                    allocatedBytes < 0 ? "n/a"
+                            : String.format(Locale.ENGLISH, "%.1f KB/msg", getAllocatedBytesPerMessage() / 1024.0));
+        }
+    }
+
+    /**
+     * HotSpot 的线程内存分配统计. 其他 JVM 上不可用时所有方法返回 0.
+     */
+    private static final class Allocation {
+        private static final com.sun.management.ThreadMXBean BEAN = bean();
+
+        private static com.sun.management.ThreadMXBean bean() {
+            try {
+                ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+                if (bean instanceof com.sun.management.ThreadMXBean) {
+                    com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) bean;
+                    if (hotspot.isThreadAllocatedMemorySupported()) {
+                        hotspot.setThreadAllocatedMemoryEnabled(true);
+                        return hotspot;
+                    }
+                }
+            } catch (Throwable ignore) {
+                //不是 HotSpot
+            }
+            return null;
+        }
+
+        static boolean isSupported() {
+            return BEAN != null;
+        }
+
+        /**
+         * @return 当前线程已经分配的字节数
+         */
+        static long current() {
+            return BEAN == null ? 0 : BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+
+        /**
+         * @return 名称以 prefix 开头的线程已经分配的字节数
+         */
+        static Map<Long, Long> snapshot(String prefix) {
+            Map<Long, Long> map = new HashMap<Long, Long>();
+            if (BEAN == null) {
+                return map;
+            }
+            for (Map.Entry<Thread, StackTraceElement[]> entry : Thread.getAllStackTraces().entrySet()) {
+                Thread thread = entry.getKey();
+                if (thread.getName().startsWith(prefix)) {
+                    map.put(thread.getId(), BEAN.getThreadAllocatedBytes(thread.getId()));
+                }
+            }
+            return map;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq > 0) {
+                options.put(arg.substring(0, eq).toLowerCase(Locale.ENGLISH), arg.substring(eq + 1));
+            }
+        }
+        SmtpSink.Builder builder = SmtpSink.newBuilder()
+                .latency(Long.parseLong(option(options, "latency", "0")))
+                .failureRate(Double.parseDouble(option(options, "failure", "0")))
+                .rejectRate(Double.parseDouble(option(options, "reject", "0")));
+        if (Boolean.parseBoolean(option(options, "tls", "false"))) {
+            builder.startTls();
+        }
+        SmtpSink sink = builder.start();
+        try {
+            Result result = MailLoadTest.newInstance(sink)
+                    .mode(Mode.valueOf(option(options, "mode", "payload").toUpperCase(Locale.ENGLISH)))
+                    .messages(Integer.parseInt(option(options, "messages", "10000")))
+                    .warmup(Integer.parseInt(option(options, "warmup", "1000")))
+                    .concurrency(Integer.parseInt(option(options, "concurrency", "8")))
+                    .bodySize(Integer.parseInt(option(options, "size", "1024")))
+                    .recipients(Integer.parseInt(option(options, "recipients", "1")))
+                    .virtualThreads(Boolean.parseBoolean(option(options, "virtual", "false")))
+                    .run();
+            System.out.println(result);
+            System.out.println("sink: received=" + sink.getMessageCount() + " connections=" + sink.getConnectionCount());
+        } finally {
+            sink.close();
+        }
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+}
@@ -0,0 +1,51 @@
+package com.youthlin.utils.mail.sink;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 测试服务器收到的一封邮件
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class ReceivedMessage {
+    private final String envelopeFrom;
+    private final List<String> recipients;
+    private final byte[] data;
+
+    ReceivedMessage(String envelopeFrom, List<String> recipients, byte[] data) {
+        this.envelopeFrom = envelopeFrom;
+        this.recipients = Collections.unmodifiableList(recipients);
+        this.data = data;
+    }
+
+    /**
+     * @return MAIL FROM 中的地址
+     */
+    public String getEnvelopeFrom() {
+        return envelopeFrom;
+    }
+
+    /**
+     * @return 被接受的 RCPT TO 地址
+     */
+    public List<String> getRecipients() {
+        return recipients;
+    }
+
+    /**
+     * @return 去掉点转义后的原始邮件(CRLF 换行)
+     */
+    public byte[] getData() {
+        return data.clone();
+    }
+
+    public InputStream getInputStream() {
+        return new ByteArrayInputStream(data);
+    }
+
+    public int size() {
+        return data.length;
+    }
+}
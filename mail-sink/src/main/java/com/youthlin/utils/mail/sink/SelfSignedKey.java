@@ -0,0 +1,104 @@
+package com.youthlin.utils.mail.sink;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 测试服务器使用的自签名证书.
+ * <p>
+ * JDK 没有公开生成证书的 API, 这里调用 JDK 自带的 keytool 生成临时的 keystore, 整个 JVM 只生成一次.
+ */
+final class SelfSignedKey {
+    private static final char[] PASSWORD = "smtp-sink".toCharArray();
+    private static KeyStore keyStore;
+
+    private SelfSignedKey() {
+    }
+
+    static synchronized KeyStore keyStore() throws IOException, GeneralSecurityException {
+        if (keyStore == null) {
+            keyStore = generate();
+        }
+        return keyStore;
+    }
+
+    static SSLContext serverContext() throws IOException, GeneralSecurityException {
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore(), PASSWORD);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), null, null);
+        return context;
+    }
+
+    /**
+     * @return 只信任这张证书的客户端 SSLContext
+     */
+    static SSLContext clientContext() throws IOException, GeneralSecurityException {
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(keyStore());
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, tmf.getTrustManagers(), null);
+        return context;
+    }
+
+    private static KeyStore generate() throws IOException, GeneralSecurityException {
+        File file = File.createTempFile("smtp-sink", ".jks");
+        if (!file.delete()) {//keytool 不能写入已经存在的空文件
+            throw new IOException("Can not create temp file: " + file);
+        }
+        try {
+            String keytool = new File(System.getProperty("java.home"), "bin" + File.separator + "keytool").getPath();
+            List<String> command = new ArrayList<String>(Arrays.asList(keytool, "-genkeypair",
+                    "-alias", "smtp-sink", "-keyalg", "RSA", "-keysize", "2048", "-validity", "3650",
+                    "-dname", "CN=localhost", "-storetype", "JKS", "-keystore", file.getPath(),
+                    "-storepass", new String(PASSWORD), "-keypass", new String(PASSWORD)));
+            List<String> withSan = new ArrayList<String>(command);
+            withSan.add("-ext");
+            withSan.add("SAN=dns:localhost,ip:127.0.0.1");
+            if (run(withSan) != 0) {//Java 6 的 keytool 不支持 -ext
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+                if (run(command) != 0) {
+                    throw new IOException("keytool failed: " + command);
+                }
+            }
+            KeyStore store = KeyStore.getInstance("JKS");
+            InputStream in = new FileInputStream(file);
+            try {
+                store.load(in, PASSWORD);
+            } finally {
+                in.close();
+            }
+            return store;
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    private static int run(List<String> command) throws IOException {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        InputStream in = process.getInputStream();
+        byte[] buf = new byte[1024];
+        while (in.read(buf) >= 0) {
+            //丢弃输出, 避免进程阻塞
+        }
+        in.close();
+        try {
+            return process.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted.");
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.youthlin.utils.mail.sink;
+
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * 测试服务器的一个连接. 输入缓冲区中没有更多命令时才刷新应答, 所以客户端的 PIPELINING 生效.
+ */
+final class SinkConnection implements Runnable {
+    private final SmtpSink sink;
+    private final Random random = new Random();
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+    private final byte[] buf = new byte[8192];
+    private int pos;
+    private int limit;
+    private byte[] line = new byte[1024];
+    private int lineLength;
+    private boolean tls;
+    private String from;
+    private final List<String> recipients = new ArrayList<String>();
+
+    SinkConnection(SmtpSink sink, Socket socket) {
+        this.sink = sink;
+        this.socket = socket;
+    }
+
+    @Override
+    public void run() {
+        try {
+            socket.setTcpNoDelay(true);
+            streams();
+            reply("220 localhost SMTP sink");
+            out.flush();
+            while (readLine()) {
+                if (!command(new String(line, 0, lineLength, "ISO-8859-1"))) {
+                    break;
+                }
+                if (pos >= limit && in.available() == 0) {
+                    out.flush();
+                }
+            }
+            out.flush();
+        } catch (IOException ignore) {
+            //客户端断开
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    /**
+     * @return 是否继续读取命令
+     */
+    private boolean command(String command) throws IOException {
+        String upper = command.toUpperCase(Locale.ENGLISH);
+        if (upper.startsWith("EHLO")) {
+            reply("250-localhost");
+            reply("250-PIPELINING");
+            reply("250-8BITMIME");
+            reply("250-SIZE " + sink.maxMessageSize);
+            if (sink.serverContext != null && !tls) {
+                reply("250-STARTTLS");
+            }
+            reply("250 AUTH PLAIN LOGIN");
+        } else if (upper.startsWith("HELO")) {
+            reply("250 localhost");
+        } else if (upper.equals("STARTTLS") && sink.serverContext != null && !tls) {
+            reply("220 Ready to start TLS");
+            out.flush();
+            SSLSocket ssl = (SSLSocket) sink.serverContext.getSocketFactory()
+                    .createSocket(socket, socket.getInetAddress().getHostAddress(), socket.getPort(), true);
+            ssl.setUseClientMode(false);
+            ssl.startHandshake();
+            socket = ssl;
+            tls = true;
+            streams();
+            reset();
+        } else if (upper.startsWith("AUTH PLAIN")) {
+            if (upper.trim().equals("AUTH PLAIN")) {
+                reply("334 ");
+                out.flush();
+                readLine();
+            }
+            reply("235 Authentication successful");
+        } else if (upper.startsWith("AUTH LOGIN")) {
+            reply("334 VXNlcm5hbWU6");
+            out.flush();
+            readLine();
+            reply("334 UGFzc3dvcmQ6");
+            out.flush();
+            readLine();
+            reply("235 Authentication successful");
+        } else if (upper.startsWith("MAIL FROM:")) {
+            reset();
+            from = address(command);
+            reply("250 OK");
+        } else if (upper.startsWith("RCPT TO:")) {
+            if (from == null) {
+                reply("503 Need MAIL command");
+            } else if (sink.rejectRate > 0 && random.nextDouble() < sink.rejectRate) {
+                sink.rejected();
+                reply("550 Mailbox unavailable");
+            } else {
+                recipients.add(address(command));
+                reply("250 OK");
+            }
+        } else if (upper.equals("DATA")) {
+            if (recipients.isEmpty()) {
+                reply(from == null ? "503 Need MAIL command" : "554 No valid recipients");
+            } else {
+                reply("354 End data with <CR><LF>.<CR><LF>");
+                out.flush();
+                data();
+            }
+        } else if (upper.equals("RSET")) {
+            reset();
+            reply("250 OK");
+        } else if (upper.equals("NOOP")) {
+            reply("250 OK");
+        } else if (upper.equals("QUIT")) {
+            reply("221 Bye");
+            return false;
+        } else {
+            reply("500 Command not recognized");
+        }
+        return true;
+    }
+
+    private void data() throws IOException {
+        ByteArrayOutputStream data = sink.isRetaining() ? new ByteArrayOutputStream() : null;
+        long size = 0;
+        while (true) {
+            if (!readLine()) {
+                throw new IOException("Connection closed in DATA.");
+            }
+            if (lineLength == 1 && line[0] == '.') {
+                break;
+            }
+            int off = lineLength > 0 && line[0] == '.' ? 1 : 0;//去掉点转义
+            size += lineLength - off + 2;
+            if (data != null) {
+                data.write(line, off, lineLength - off);
+                data.write('\r');
+                data.write('\n');
+            }
+        }
+        if (sink.latency > 0) {
+            try {
+                Thread.sleep(sink.latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted.");
+            }
+        }
+        if (sink.maxMessageSize > 0 && size > sink.maxMessageSize) {
+            sink.failed();
+            reply("552 Message size exceeds fixed maximum message size");
+        } else if (sink.failureRate > 0 && random.nextDouble() < sink.failureRate) {
+            sink.failed();
+            reply(sink.failureCode + " Injected failure");
+        } else {
+            sink.received(from, new ArrayList<String>(recipients), data == null ? null : data.toByteArray(), size);
+            reply("250 OK queued");
+        }
+        reset();
+    }
+
+    private void reset() {
+        from = null;
+        recipients.clear();
+    }
+
+    private void streams() throws IOException {
+        in = socket.getInputStream();
+        pos = limit = 0;//STARTTLS 之前缓冲的明文丢弃
+        out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+    }
+
+    /**
+     * 读取一行到 line, 不含 CRLF
+     *
+     * @return 连接是否还没有关闭
+     */
+    private boolean readLine() throws IOException {
+        lineLength = 0;
+        while (true) {
+            if (pos >= limit) {
+                limit = in.read(buf);
+                pos = 0;
+                if (limit < 0) {
+                    limit = 0;
+                    return false;
+                }
+            }
+            int start = pos;
+            while (pos < limit && buf[pos] != '\n') {
+                pos++;
+            }
+            append(start, pos - start);
+            if (pos < limit) {
+                pos++;//跳过 '\n'
+                if (lineLength > 0 && line[lineLength - 1] == '\r') {
+                    lineLength--;
+                }
+                return true;
+            }
+        }
+    }
+
+    private void append(int start, int len) {
+        if (lineLength + len > line.length) {
+            byte[] bigger = new byte[Math.max(line.length * 2, lineLength + len)];
+            System.arraycopy(line, 0, bigger, 0, lineLength);
+            line = bigger;
+        }
+        System.arraycopy(buf, start, line, lineLength, len);
+        lineLength += len;
+    }
+
+    private void reply(String reply) throws IOException {
+        out.write(reply.getBytes("ISO-8859-1"));
+        out.write('\r');
+        out.write('\n');
+    }
+
+    private static String address(String command) {
+        int start = command.indexOf('<');
+        int end = command.indexOf('>', start + 1);
+        if (start < 0 || end < 0) {
+            return command.substring(command.indexOf(':') + 1).trim();
+        }
+        return command.substring(start + 1, end);
+    }
+}
@@ -0,0 +1,342 @@
+package com.youthlin.utils.mail.sink;
+
+import javax.mail.Session;
+import javax.net.ssl.SSLContext;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 进程内的 SMTP 测试服务器: 接受并计数邮件, 不投递.
+ * <p>
+ * 只监听 127.0.0.1, 每个连接一个线程. 支持 PIPELINING, SIZE, 8BITMIME, AUTH PLAIN/LOGIN(接受任何账号)
+ * 和使用自签名证书的 STARTTLS; 可以模拟服务器延迟、随机拒绝收件人和随机拒绝邮件.
+ * <pre>
+ * SmtpSink sink = SmtpSink.newBuilder().startTls().latency(20).failureRate(0.01).start();
+ * MailSender.newInstance(sink.newSession()).from("a@example.com").to("b@example.com")...send();
+ * sink.awaitMessages(1, 1000);
+ * sink.close();
+ * </pre>
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class SmtpSink implements Closeable {
+    final long latency;
+    final double failureRate;
+    final int failureCode;
+    final double rejectRate;
+    final long maxMessageSize;
+    final SSLContext serverContext;
+    private final SSLContext clientContext;
+    private final int retain;
+    private final ServerSocket server;
+    private final ExecutorService executor;
+    private final Thread acceptor;
+    private final LinkedList<ReceivedMessage> messages = new LinkedList<ReceivedMessage>();
+    private final Object lock = new Object();
+    private final AtomicLong messageCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong recipientCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong byteCount = new AtomicLong();
+    private final AtomicLong connectionCount = new AtomicLong();
+    private volatile boolean closed;
+
+    private SmtpSink(Builder builder) throws IOException, GeneralSecurityException {
+        latency = builder.latency;
+        failureRate = builder.failureRate;
+        failureCode = builder.failureCode;
+        rejectRate = builder.rejectRate;
+        maxMessageSize = builder.maxMessageSize;
+        retain = builder.retain;
+        serverContext = builder.startTls ? SelfSignedKey.serverContext() : null;
+        clientContext = builder.startTls ? SelfSignedKey.clientContext() : null;
+        server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), builder.port), 1024);
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "smtp-sink-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "smtp-sink-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = server.accept();
+                connectionCount.incrementAndGet();
+                executor.execute(new SinkConnection(this, socket));
+            } catch (SocketException e) {
+                return;//已关闭
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    public String getHost() {
+        return "127.0.0.1";
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * @return 信任测试服务器证书的客户端 SSLContext, 没有启用 STARTTLS 时返回 null
+     */
+    public SSLContext getClientSslContext() {
+        return clientContext;
+    }
+
+    /**
+     * 连接到测试服务器的 Session. 启用了 STARTTLS 时同时配置好信任测试证书.
+     */
+    public Session newSession() {
+        Properties props = new Properties();
+        props.put("mail.smtp.host", getHost());
+        props.put("mail.smtp.port", String.valueOf(getPort()));
+        if (clientContext != null) {
+            props.put("mail.smtp.starttls.enable", "true");
+            props.put("mail.smtp.starttls.required", "true");
+            props.put("mail.smtp.ssl.socketFactory", clientContext.getSocketFactory());
+        }
+        return Session.getInstance(props);
+    }
+
+    //region //统计
+
+    /**
+     * @return 接受的邮件数
+     */
+    public long getMessageCount() {
+        return messageCount.get();
+    }
+
+    /**
+     * @return 模拟失败而拒绝的邮件数
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    public long getRecipientCount() {
+        return recipientCount.get();
+    }
+
+    /**
+     * @return 模拟失败而拒绝的收件人数
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * @return 接受的邮件的总字节数
+     */
+    public long getByteCount() {
+        return byteCount.get();
+    }
+
+    public long getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * @return 保留的最近收到的邮件
+     */
+    public List<ReceivedMessage> getMessages() {
+        synchronized (lock) {
+            return new ArrayList<ReceivedMessage>(messages);
+        }
+    }
+
+    /**
+     * 清空计数和保留的邮件
+     */
+    public void reset() {
+        synchronized (lock) {
+            messages.clear();
+            messageCount.set(0);
+            failedCount.set(0);
+            recipientCount.set(0);
+            rejectedCount.set(0);
+            byteCount.set(0);
+            connectionCount.set(0);
+        }
+    }
+
+    /**
+     * 等待接受的邮件数达到 count
+     *
+     * @return 超时前是否达到
+     */
+    public boolean awaitMessages(long count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (lock) {
+            while (messageCount.get() < count) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    return false;
+                }
+                lock.wait(wait);
+            }
+            return true;
+        }
+    }
+
+    void rejected() {
+        rejectedCount.incrementAndGet();
+    }
+
+    void failed() {
+        failedCount.incrementAndGet();
+    }
+
+    void received(String from, List<String> recipients, byte[] data, long size) {
+        synchronized (lock) {
+            messageCount.incrementAndGet();
+            recipientCount.addAndGet(recipients.size());
+            byteCount.addAndGet(size);
+            if (retain > 0 && data != null) {
+                messages.add(new ReceivedMessage(from, recipients, data));
+                if (messages.size() > retain) {
+                    messages.removeFirst();
+                }
+            }
+            lock.notifyAll();
+        }
+    }
+
+    boolean isRetaining() {
+        return retain > 0;
+    }
+
+    //endregion //统计
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            server.close();
+        } catch (IOException ignore) {
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * SmtpSink 构造器
+     */
+    public static class Builder {
+        private int port;
+        private boolean startTls;
+        private long latency;
+        private double failureRate;
+        private int failureCode = 451;
+        private double rejectRate;
+        private long maxMessageSize;
+        private int retain;
+
+        private Builder() {
+        }
+
+        /**
+         * 监听的端口, 默认 0 即随机端口
+         */
+        public Builder port(int port) {
+            this.port = port;
+            return this;
+        }
+
+        /**
+         * 支持 STARTTLS. 第一次启用时调用 keytool 生成自签名证书, 需要一两秒.
+         */
+        public Builder startTls() {
+            this.startTls = true;
+            return this;
+        }
+
+        /**
+         * 每封邮件结束(DATA 之后的 ".")到应答之间的延迟毫秒数, 模拟中继的处理时间
+         */
+        public Builder latency(long millis) {
+            this.latency = millis;
+            return this;
+        }
+
+        /**
+         * 以 rate 的概率拒绝邮件, 默认应答 451
+         */
+        public Builder failureRate(double rate) {
+            this.failureRate = rate;
+            return this;
+        }
+
+        public Builder failureCode(int code) {
+            this.failureCode = code;
+            return this;
+        }
+
+        /**
+         * 以 rate 的概率拒绝收件人(应答 550)
+         */
+        public Builder rejectRate(double rate) {
+            this.rejectRate = rate;
+            return this;
+        }
+
+        /**
+         * 在 EHLO 中声明的 SIZE, 超过时拒绝邮件. 默认 0 不限制
+         */
+        public Builder maxMessageSize(long size) {
+            this.maxMessageSize = size;
+            return this;
+        }
+
+        /**
+         * 保留最近收到的 count 封邮件的内容, 默认不保留只计数
+         */
+        public Builder retain(int count) {
+            this.retain = count;
+            return this;
+        }
+
+        public SmtpSink start() throws IOException {
+            try {
+                return new SmtpSink(this);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Can not create self-signed certificate.", e);
+            }
+        }
+    }
+}
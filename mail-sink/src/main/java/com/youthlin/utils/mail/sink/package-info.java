@@ -0,0 +1,8 @@
+/**
+ * 进程内的 SMTP 测试服务器和发信压测工具, 不需要网络和真实的邮件服务器.
+ * <p>
+ * {@link com.youthlin.utils.mail.sink.SmtpSink} 接收并计数邮件, 可以模拟延迟和失败;
+ * {@link com.youthlin.utils.mail.sink.MailLoadTest} 以指定的并发驱动 MailSender,
+ * 报告吞吐量、延迟分位数和每封邮件的内存分配.
+ */
+package com.youthlin.utils.mail.sink;
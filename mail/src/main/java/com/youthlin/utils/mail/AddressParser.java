@@ -0,0 +1,283 @@
+package com.youthlin.utils.mail;
+
+import javax.mail.Address;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeUtility;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 批量解析收件人地址.
+ * <p>
+ * 每个地址只解析、校验一次, 不合法的地址单独记录, 不影响其他地址;
+ * 显示名称按 RFC 2047 编码后的结果会被缓存, 大量收件人重名时不必重复编码.
+ * 收件人很多时可以传入线程池分段并行解析.
+ * <pre>
+ * AddressParser.Result result = AddressParser.getInstance("UTF-8").parse(emails, names);
+ * for (AddressParser.Invalid invalid : result.getInvalid()) {
+ *     log(invalid.getIndex(), invalid.getEmail(), invalid.getError());
+ * }
+ * MailSender.newInstance(session).bcc(result.getAddresses())...
+ * </pre>
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class AddressParser {
+    private static final int NAME_CACHE_SIZE = 4096;
+    private static final int PARALLEL_THRESHOLD = 4096;//每段至少解析的地址数
+    private static final ConcurrentMap<String, AddressParser> PARSERS = new ConcurrentHashMap<String, AddressParser>();
+    private final String charset;
+    private final Map<String, String> names = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > NAME_CACHE_SIZE;
+        }
+    };
+    private final Lock namesLock = new ReentrantLock();
+
+    private AddressParser(String charset) {
+        this.charset = charset;
+    }
+
+    /**
+     * @param charset 显示名称的编码
+     * @return 该编码共享的解析器
+     */
+    public static AddressParser getInstance(String charset) {
+        AddressParser parser = PARSERS.get(charset);
+        if (parser == null) {
+            parser = new AddressParser(charset);
+            AddressParser old = PARSERS.putIfAbsent(charset, parser);
+            if (old != null) {
+                parser = old;
+            }
+        }
+        return parser;
+    }
+
+    /**
+     * @param emails 地址
+     * @param names  显示名称, 可以为 null; 数量与地址不一致时忽略
+     */
+    public Result parse(String[] emails, String[] names) {
+        return parse(emails, names != null && names.length == emails.length ? names : null, 0, emails.length);
+    }
+
+    public Result parse(Collection<String> emails, Collection<String> names) {
+        String[] nameArr = names != null && names.size() == emails.size() ? names.toArray(new String[names.size()]) : null;
+        return parse(emails.toArray(new String[emails.size()]), nameArr);
+    }
+
+    /**
+     * 地址很多时在线程池中分段并行解析, 结果的顺序与输入一致.
+     *
+     * @param executor 解析使用的线程池
+     */
+    public Result parse(Collection<String> emails, Collection<String> names, ExecutorService executor) {
+        final String[] emailArr = emails.toArray(new String[emails.size()]);
+        final String[] nameArr = names != null && names.size() == emails.size()
+                ? names.toArray(new String[names.size()]) : null;
+        int size = emailArr.length;
+        int slice = Math.max(PARALLEL_THRESHOLD, size / (Runtime.getRuntime().availableProcessors() * 4) + 1);
+        if (size <= slice) {
+            return parse(emailArr, nameArr, 0, size);
+        }
+        List<Future<Result>> futures = new ArrayList<Future<Result>>();
+        for (int from = 0; from < size; from += slice) {
+            final int start = from;
+            final int end = Math.min(size, from + slice);
+            futures.add(executor.submit(new Callable<Result>() {
+                @Override
+                public Result call() throws Exception {
+                    return parse(emailArr, nameArr, start, end);
+                }
+            }));
+        }
+        List<Address> addresses = new ArrayList<Address>(size);
+        List<Invalid> invalid = new ArrayList<Invalid>();
+        try {
+            for (Future<Result> future : futures) {
+                Result result = future.get();
+                Collections.addAll(addresses, result.addresses);
+                invalid.addAll(result.invalid);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (Future<Result> future : futures) {
+                future.cancel(true);
+            }
+            throw new IllegalStateException("Interrupted.", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+        return new Result(addresses.toArray(new Address[addresses.size()]), invalid);
+    }
+
+    private Result parse(String[] emails, String[] names, int from, int to) {
+        List<Address> addresses = new ArrayList<Address>(to - from);
+        List<Invalid> invalid = new ArrayList<Invalid>(0);
+        for (int i = from; i < to; i++) {
+            try {
+                addresses.add(parse(emails[i], names == null ? null : names[i]));
+            } catch (AddressException e) {
+                invalid.add(new Invalid(i, emails[i], e));
+            }
+        }
+        return new Result(addresses.toArray(new Address[addresses.size()]), invalid);
+    }
+
+    /**
+     * 解析一个地址. 显示名称无法编码时只使用地址.
+     */
+    InternetAddress parse(String email, String name) throws AddressException {
+        if (email == null) {
+            throw new AddressException("Email address is null.");
+        }
+        if (name != null) {
+            String encoded = encode(name);
+            if (encoded != null) {
+                InternetAddress address = new NamedAddress(email, name, encoded);
+                address.validate();
+                return address;
+            }
+        }
+        return new InternetAddress(email);
+    }
+
+    /**
+     * @return 编码后的显示名称, 无法编码时返回 null
+     */
+    private String encode(String name) {
+        if (isPlain(name)) {
+            return name;
+        }
+        namesLock.lock();
+        try {
+            String encoded = names.get(name);
+            if (encoded != null) {
+                return encoded;
+            }
+        } finally {
+            namesLock.unlock();
+        }
+        String encoded;
+        try {
+            encoded = MimeUtility.encodeWord(name, charset, null);
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+        namesLock.lock();
+        try {
+            names.put(name, encoded);
+        } finally {
+            namesLock.unlock();
+        }
+        return encoded;
+    }
+
+    /**
+     * 不需要编码的名称: 只有可打印的 ASCII 字符(和 MimeUtility 的判断一致)
+     */
+    private static boolean isPlain(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c >= 0x7F || c < 0x20 && c != '\t' && c != '\r' && c != '\n') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 直接使用已编码的显示名称, 跳过 InternetAddress 构造时的编码
+     */
+    private static final class NamedAddress extends InternetAddress {
+        private static final long serialVersionUID = 1L;
+
+        NamedAddress(String address, String personal, String encodedPersonal) {
+            this.address = address;
+            this.personal = personal;
+            this.encodedPersonal = encodedPersonal;
+        }
+    }
+
+    /**
+     * 批量解析的结果
+     */
+    public static final class Result {
+        private final Address[] addresses;
+        private final List<Invalid> invalid;
+
+        private Result(Address[] addresses, List<Invalid> invalid) {
+            this.addresses = addresses;
+            this.invalid = Collections.unmodifiableList(invalid);
+        }
+
+        /**
+         * @return 合法的地址, 顺序与输入一致
+         */
+        public Address[] getAddresses() {
+            return addresses.clone();
+        }
+
+        Address[] addresses() {
+            return addresses;
+        }
+
+        public List<Invalid> getInvalid() {
+            return invalid;
+        }
+
+        public boolean isAllValid() {
+            return invalid.isEmpty();
+        }
+    }
+
+    /**
+     * 一个不合法的地址
+     */
+    public static final class Invalid {
+        private final int index;
+        private final String email;
+        private final AddressException error;
+
+        private Invalid(int index, String email, AddressException error) {
+            this.index = index;
+            this.email = email;
+            this.error = error;
+        }
+
+        /**
+         * @return 在输入中的位置
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public String getEmail() {
+            return email;
+        }
+
+        public AddressException getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return "Invalid{index=" + index + ", email=" + email + ", error=" + error.getMessage() + '}';
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.youthlin.utils.mail;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * 把附件转为链接: 邮件超过服务器的大小限制时, 把附件上传到文件服务器等处, 邮件中只保留下载链接.
+ *
+ * @see MailSender#linkOversizeAttachments(AttachmentLinker)
+ */
+public interface AttachmentLinker {
+    /**
+     * @param file 附件
+     * @return 下载链接
+     * @throws IOException 上传失败
+     */
+    String link(File file) throws IOException;
+}
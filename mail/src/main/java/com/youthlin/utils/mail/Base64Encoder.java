@@ -0,0 +1,167 @@
+package com.youthlin.utils.mail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * 按 MIME 格式(每行 76 个字符, CRLF 换行)分块进行 base64 编码, 只使用固定大小的缓冲区.
+ * <p>
+ * 和 javax.mail 的 BASE64EncoderStream 一样, 最后一行之后不输出 CRLF.
+ */
+final class Base64Encoder {
+    /**
+     * 一行对应的原始字节数
+     */
+    static final int BYTES_PER_LINE = 57;
+    private static final int CHARS_PER_LINE = 76;
+    private static final int LINES_PER_CHUNK = 64;
+    private static final byte[] ALPHABET = ("ABCDEFGHIJKLMNOPQRSTUVWXYZ"
+            + "abcdefghijklmnopqrstuvwxyz0123456789+/").getBytes();
+
+    private Base64Encoder() {
+    }
+
+    /**
+     * 编码后的字节数(含换行)
+     */
+    static long encodedLength(long size) {
+        if (size <= 0) {
+            return 0;
+        }
+        long lines = (size + BYTES_PER_LINE - 1) / BYTES_PER_LINE;
+        return (size + 2) / 3 * 4 + (lines - 1) * 2;
+    }
+
+    /**
+     * 编码 src 中剩余的全部字节并写出.
+     *
+     * @param last 是否是整个内容的最后一段, 最后一段的最后一行之后不换行
+     */
+    static void encode(ByteBuffer src, OutputStream out, boolean last) throws IOException {
+        byte[] in = new byte[BYTES_PER_LINE * LINES_PER_CHUNK];
+        byte[] encoded = new byte[(CHARS_PER_LINE + 2) * LINES_PER_CHUNK];
+        while (src.hasRemaining()) {
+            int len = Math.min(in.length, src.remaining());
+            src.get(in, 0, len);
+            int n = encodeLines(in, 0, len, encoded, 0, last && !src.hasRemaining());
+            out.write(encoded, 0, n);
+        }
+    }
+
+    /**
+     * 把 in 中的字节编码为若干行.
+     *
+     * @return 写入 out 的字节数
+     */
+    static int encodeLines(byte[] in, int off, int len, byte[] out, int outOff, boolean last) {
+        int pos = outOff;
+        int end = off + len;
+        while (off < end) {
+            int lineLen = Math.min(BYTES_PER_LINE, end - off);
+            pos = encodeLine(in, off, lineLen, out, pos);
+            off += lineLen;
+            if (off < end || !last) {
+                out[pos++] = '\r';
+                out[pos++] = '\n';
+            }
+        }
+        return pos - outOff;
+    }
+
+    private static int encodeLine(byte[] in, int off, int len, byte[] out, int pos) {
+        int end = off + len - len % 3;
+        for (; off < end; off += 3) {
+            int b = (in[off] & 0xFF) << 16 | (in[off + 1] & 0xFF) << 8 | (in[off + 2] & 0xFF);
+            out[pos++] = ALPHABET[b >>> 18];
+            out[pos++] = ALPHABET[(b >>> 12) & 0x3F];
+            out[pos++] = ALPHABET[(b >>> 6) & 0x3F];
+            out[pos++] = ALPHABET[b & 0x3F];
+        }
+        int remain = len % 3;
+        if (remain == 1) {
+            int b = (in[off] & 0xFF) << 16;
+            out[pos++] = ALPHABET[b >>> 18];
+            out[pos++] = ALPHABET[(b >>> 12) & 0x3F];
+            out[pos++] = '=';
+            out[pos++] = '=';
+        } else if (remain == 2) {
+            int b = (in[off] & 0xFF) << 16 | (in[off + 1] & 0xFF) << 8;
+            out[pos++] = ALPHABET[b >>> 18];
+            out[pos++] = ALPHABET[(b >>> 12) & 0x3F];
+            out[pos++] = ALPHABET[(b >>> 6) & 0x3F];
+            out[pos++] = '=';
+        }
+        return pos;
+    }
+
+    /**
+     * 读取时编码的输入流: 从原始内容中读出的是 base64 编码后的字节.
+     */
+    static final class EncodingInputStream extends InputStream {
+        private final InputStream in;
+        private final byte[] raw = new byte[BYTES_PER_LINE];
+        private final byte[] line = new byte[CHARS_PER_LINE + 2];
+        private int pos;
+        private int limit;
+        private int next = -1;//预读的一个字节, 用来判断是否是最后一行
+        private boolean eof;
+
+        EncodingInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos >= limit && !fill()) {
+                return -1;
+            }
+            return line[pos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (pos >= limit && !fill()) {
+                return -1;
+            }
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(line, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        private boolean fill() throws IOException {
+            if (eof) {
+                return false;
+            }
+            int n = 0;
+            if (next >= 0) {
+                raw[n++] = (byte) next;
+            }
+            while (n < raw.length) {
+                int r = in.read(raw, n, raw.length - n);
+                if (r < 0) {
+                    break;
+                }
+                n += r;
+            }
+            next = n < raw.length ? -1 : in.read();
+            eof = next < 0;
+            if (n == 0) {
+                return false;
+            }
+            limit = encodeLines(raw, 0, n, line, 0, eof);
+            pos = 0;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
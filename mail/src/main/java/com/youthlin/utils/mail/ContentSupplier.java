@@ -0,0 +1,15 @@
+package com.youthlin.utils.mail;
+
+import java.io.IOException;
+
+/**
+ * 延迟提供邮件内容, 每次调用返回一个新的流.
+ * <p>
+ * 例如 <code>MailSender.html(ContentSupplier&lt;Reader&gt;)</code> 在真正发送时才调用 {@link #get()} 生成内容,
+ * 内容边生成边编码写入连接, 不需要先在内存中拼出完整的字符串.
+ *
+ * @param <T> Reader 或 InputStream
+ */
+public interface ContentSupplier<T> {
+    T get() throws IOException;
+}
@@ -0,0 +1,177 @@
+package com.youthlin.utils.mail;
+
+import net.markenwerk.utils.mail.dkim.DkimSigner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * DKIM 签名器注册表.
+ * <p>
+ * 按 (domain, selector) 保存解析好的私钥, 每个私钥只解析一次.
+ * {@link DkimSigner} 内部持有 Signature 和 MessageDigest, 不是线程安全的,
+ * 所以注册表为每个线程各创建一个签名器, 注册表本身可以在多个线程间共享.
+ * <pre>
+ * DkimSignerRegistry.getDefault().register("youthlin.com", "selector", new File("key.der"));
+ * MailSender.newInstance(session)...dkim("youthlin.com", "selector").send();
+ * </pre>
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class DkimSignerRegistry {
+    private static final DkimSignerRegistry DEFAULT = new DkimSignerRegistry();
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    public static DkimSignerRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    public Entry register(String domain, String selector, RSAPrivateKey privateKey) {
+        Entry entry = new Entry(domain, selector, privateKey, null);
+        entries.put(key(domain, selector), entry);
+        return entry;
+    }
+
+    public Entry register(String domain, String selector, File privateDERKey) {
+        Entry entry = new Entry(domain, selector, parse(privateDERKey), fileKey(privateDERKey));
+        entries.put(key(domain, selector), entry);
+        return entry;
+    }
+
+    public Entry register(String domain, String selector, InputStream privateDERKey) {
+        return register(domain, selector, parse(privateDERKey));
+    }
+
+    /**
+     * @return 已注册的签名器, 没有注册时返回 null
+     */
+    public Entry get(String domain, String selector) {
+        return entries.get(key(domain, selector));
+    }
+
+    public Entry remove(String domain, String selector) {
+        return entries.remove(key(domain, selector));
+    }
+
+    /**
+     * 已注册且来自同一个(未修改的)文件时直接返回, 否则解析文件并注册.
+     */
+    Entry getOrRegister(String domain, String selector, File privateDERKey) {
+        Entry entry = get(domain, selector);
+        if (entry != null && fileKey(privateDERKey).equals(entry.source)) {
+            return entry;
+        }
+        return register(domain, selector, privateDERKey);
+    }
+
+    /**
+     * 不加入注册表的签名器
+     */
+    static Entry newEntry(String domain, String selector, RSAPrivateKey privateKey) {
+        return new Entry(domain, selector, privateKey, null);
+    }
+
+    static Entry newEntry(String domain, String selector, InputStream privateDERKey) {
+        return new Entry(domain, selector, parse(privateDERKey), null);
+    }
+
+    private static String key(String domain, String selector) {
+        return selector + "._domainkey." + domain;
+    }
+
+    private static String fileKey(File file) {
+        return file.getAbsolutePath() + ':' + file.lastModified() + ':' + file.length();
+    }
+
+    private static RSAPrivateKey parse(File privateDERKey) {
+        try {
+            InputStream in = new FileInputStream(privateDERKey);
+            try {
+                return parse(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("dkim exception. file = " + privateDERKey.getAbsolutePath(), e);
+        }
+    }
+
+    private static RSAPrivateKey parse(InputStream privateDERKey) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int len;
+            while ((len = privateDERKey.read(buf)) > 0) {
+                out.write(buf, 0, len);
+            }
+            KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+            return (RSAPrivateKey) keyFactory.generatePrivate(new PKCS8EncodedKeySpec(out.toByteArray()));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("dkim exception. Can not read key: " + privateDERKey, e);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("dkim exception. Invalid DER key: " + privateDERKey, e);
+        }
+    }
+
+    /**
+     * 一组 (domain, selector, 私钥), 为每个线程提供各自的 {@link DkimSigner}.
+     */
+    public static final class Entry {
+        private final String domain;
+        private final String selector;
+        private final RSAPrivateKey privateKey;
+        private final String source;//私钥来源文件
+        private volatile boolean checkDomainKey = true;
+        private final ThreadLocal<DkimSigner> signers = new ThreadLocal<DkimSigner>() {
+            @Override
+            protected DkimSigner initialValue() {
+                DkimSigner signer = new TimedDkimSigner(domain, selector, privateKey);
+                signer.setCheckDomainKey(checkDomainKey);
+                return signer;
+            }
+        };
+
+        private Entry(String domain, String selector, RSAPrivateKey privateKey, String source) {
+            this.domain = domain;
+            this.selector = selector;
+            this.privateKey = privateKey;
+            this.source = source;
+            signers.set(new TimedDkimSigner(domain, selector, privateKey));//参数不合法时立即抛出异常
+        }
+
+        /**
+         * 当前线程的签名器. 只能在当前线程中使用, 不要传给其他线程.
+         */
+        public DkimSigner signer() {
+            DkimSigner signer = signers.get();
+            if (signer.isCheckDomainKey() != checkDomainKey) {
+                signer.setCheckDomainKey(checkDomainKey);
+            }
+            return signer;
+        }
+
+        /**
+         * 签名前是否通过 DNS 检查公钥与私钥匹配, 默认检查.
+         */
+        public Entry checkDomainKey(boolean check) {
+            this.checkDomainKey = check;
+            return this;
+        }
+
+        public String getDomain() {
+            return domain;
+        }
+
+        public String getSelector() {
+            return selector;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.youthlin.utils.mail;
+
+import com.sun.mail.util.LineOutputStream;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+
+/**
+ * 内容已经按传输编码编好的 BodyPart.
+ * <p>
+ * 头部(Content-Type, Content-Transfer-Encoding 等)由调用方设置好, 输出时不再检测类型和编码,
+ * 内容直接从 {@link #writeContent(OutputStream)} 写出.
+ */
+abstract class EncodedBodyPart extends MimeBodyPart {
+
+    /**
+     * 写出已编码的内容
+     */
+    protected abstract void writeContent(OutputStream os) throws IOException, MessagingException;
+
+    /**
+     * 已编码的内容, 解码由 {@link MimeBodyPart#getInputStream()} 完成
+     */
+    @Override
+    protected abstract InputStream getContentStream() throws MessagingException;
+
+    /**
+     * 已编码内容的字节数, 用于不序列化就估算邮件大小. 未知时返回 -1
+     */
+    long getEncodedSize() {
+        return -1;
+    }
+
+    @Override
+    protected void updateHeaders() {
+        //头部在创建时已经确定
+    }
+
+    @Override
+    public void writeTo(OutputStream os) throws IOException, MessagingException {
+        LineOutputStream los = new LineOutputStream(os);
+        @SuppressWarnings("unchecked")
+        Enumeration<String> e = getAllHeaderLines();
+        while (e.hasMoreElements()) {
+            los.writeln(e.nextElement());
+        }
+        los.writeln();
+        writeContent(os);
+        os.flush();
+    }
+}
@@ -0,0 +1,375 @@
+package com.youthlin.utils.mail;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPMessage;
+import com.sun.mail.smtp.SMTPTransport;
+import com.youthlin.utils.mail.event.SendListeners;
+import com.youthlin.utils.mail.nio.SmtpEngine;
+import com.youthlin.utils.mail.nio.SmtpFuture;
+import com.youthlin.utils.mail.nio.SmtpResult;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * 序列化好的邮件.
+ * <p>
+ * 由 {@link MailSender#toPayload()} 生成: 整封邮件(包括 DKIM 签名)只序列化、签名一次,
+ * 之后可以用不同的信封(MAIL FROM / RCPT TO)多次发送同样的字节, 适合逐个密送等场景:
+ * <pre>
+ * MailPayload payload = MailSender.newInstance(session)
+ *      .from("email").to("list@example.com").subject("subject").html("content")
+ *      .dkim(new File("key.der"), "youthlin.com", "selector")
+ *      .toPayload();
+ * for (String bcc : recipients) {
+ *     payload.send(new InternetAddress(bcc));
+ * }
+ * </pre>
+ * 生成后不可变, 可以在多个线程间共享. Bcc 头不会被序列化.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class MailPayload {
+    private static final String[] IGNORE_HEADERS = {"Bcc", "Content-Length"};
+    private final Session session;
+    private final ByteBuffer content;//不对外暴露, 读取时使用 duplicate()
+    private final String envelopeFrom;
+    private final Address[] recipients;
+    private final long signNanos;
+
+    private MailPayload(Session session, ByteBuffer content, String envelopeFrom, Address[] recipients,
+                        long signNanos) {
+        this.session = session;
+        this.content = content;
+        this.envelopeFrom = envelopeFrom;
+        this.recipients = recipients;
+        this.signNanos = signNanos;
+    }
+
+    /**
+     * 序列化邮件.
+     *
+     * @param message 邮件, DKIM 邮件在这里完成签名
+     * @param offHeap 是否把结果放在堆外内存
+     */
+    static MailPayload render(Message message, boolean offHeap) throws MessagingException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+        TimedDkimSigner.take();
+        try {
+            message.saveChanges();
+            ((MimeMessage) message).writeTo(out, IGNORE_HEADERS);
+        } catch (IOException e) {
+            throw new MessagingException("Can not render message.", e);
+        }
+        long signNanos = TimedDkimSigner.take();
+        byte[] bytes = out.toByteArray();
+        ByteBuffer buffer;
+        if (offHeap) {
+            buffer = ByteBuffer.allocateDirect(bytes.length);
+            buffer.put(bytes).flip();
+        } else {
+            buffer = ByteBuffer.wrap(bytes);
+        }
+        Address[] from = message.getFrom();
+        String envelopeFrom = from != null && from.length > 0 ? ((InternetAddress) from[0]).getAddress() : null;
+        Address[] recipients = message.getAllRecipients();
+        return new MailPayload(message.getSession(), buffer, envelopeFrom, recipients == null ? new Address[0] : recipients,
+                signNanos);
+    }
+
+    /**
+     * 序列化后的字节数
+     */
+    public int size() {
+        return content.remaining();
+    }
+
+    /**
+     * 邮件头中的全部收件人(To/Cc/Bcc)
+     */
+    public Address[] getRecipients() {
+        return recipients.clone();
+    }
+
+    public String getEnvelopeFrom() {
+        return envelopeFrom;
+    }
+
+    /**
+     * 序列化时 DKIM 签名所用的纳秒数, 没有签名时为 0.
+     * 签名只发生一次, 所以之后每次发送的 {@link com.youthlin.utils.mail.event.SendEvent} 中不包含签名耗时.
+     */
+    public long getSignNanos() {
+        return signNanos;
+    }
+
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[size()];
+        content.duplicate().get(bytes);
+        return bytes;
+    }
+
+    public void writeTo(OutputStream os) throws IOException {
+        ByteBuffer src = content.duplicate();
+        if (src.hasArray()) {
+            os.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+            return;
+        }
+        byte[] buf = new byte[Math.min(8192, Math.max(1, src.remaining()))];
+        while (src.hasRemaining()) {
+            int len = Math.min(buf.length, src.remaining());
+            src.get(buf, 0, len);
+            os.write(buf, 0, len);
+        }
+    }
+
+    /**
+     * 生成可以交给 {@link Transport} 发送的邮件, 信封发件人为 envelopeFrom.
+     */
+    public Message toMessage(String envelopeFrom) {
+        RawMessage message = new RawMessage(session);
+        message.setEnvelopeFrom(envelopeFrom == null ? this.envelopeFrom : envelopeFrom);
+        return message;
+    }
+
+    /**
+     * 按邮件头中的收件人发送
+     */
+    public void send() throws MessagingException {
+        send(recipients);
+    }
+
+    /**
+     * 使用新的信封收件人发送, 每次调用都会建立新连接.
+     * 超过服务器声明的 SIZE 时不传输内容, 抛出 {@link MessageTooLargeException}.
+     *
+     * @param recipients 信封收件人(RCPT TO)
+     * @throws MessagingException 异常
+     */
+    public void send(Address... recipients) throws MessagingException {
+        MeteredTransport.sendMetered(toMessage(null), recipients, size());
+    }
+
+    /**
+     * 使用已连接的 Transport 发送, 可以复用同一个连接发送多次.
+     *
+     * @param transport    已连接的 Transport
+     * @param envelopeFrom 信封发件人(MAIL FROM), 为 null 时使用邮件头中的发件人
+     * @param recipients   信封收件人(RCPT TO)
+     * @throws MessagingException 异常
+     */
+    public void send(Transport transport, String envelopeFrom, Address... recipients) throws MessagingException {
+        MeteredTransport.checkSize(transport, size());
+        Message message = toMessage(envelopeFrom);
+        message.saveChanges();
+        transport.sendMessage(message, recipients);
+    }
+
+    /**
+     * 使用非阻塞的 {@link SmtpEngine} 按邮件头中的收件人异步发送
+     */
+    public SmtpFuture send(SmtpEngine engine) {
+        return send(engine, recipients);
+    }
+
+    /**
+     * 使用非阻塞的 {@link SmtpEngine} 异步发送, 不占用调用线程.
+     *
+     * @param engine     SMTP 引擎
+     * @param recipients 信封收件人(RCPT TO)
+     * @return 服务器应答后完成的 Future
+     */
+    public SmtpFuture send(SmtpEngine engine, Address... recipients) {
+        String[] rcptTo = new String[recipients.length];
+        for (int i = 0; i < recipients.length; i++) {
+            rcptTo[i] = RecipientChunks.address(recipients[i]);
+        }
+        return engine.send(envelopeFrom, rcptTo, content);
+    }
+
+    /**
+     * 把邮件头中的收件人按域名分组、切分为批次, 在多个连接上并行发送.
+     * 一个地址被拒绝或一个批次失败不影响其他收件人.
+     *
+     * @param chunkSize   每批最多的收件人数(每个事务的 RCPT TO 数量)
+     * @param connections 同时使用的连接数
+     * @param executor    执行发送的线程池, 线程数不少于 connections 时才能充分并行
+     * @return 每个收件人的发送结果
+     * @throws MessagingException 等待结果时被中断
+     */
+    public SendReport sendInChunks(int chunkSize, int connections, ExecutorService executor)
+            throws MessagingException {
+        List<Address[]> chunks = RecipientChunks.split(recipients, chunkSize);
+        final BlockingQueue<Transport> pool = new ArrayBlockingQueue<Transport>(Math.max(1, connections));
+        for (int i = 0; i < Math.max(1, connections); i++) {
+            pool.add(SendListeners.isEmpty() ? session.getTransport("smtp") : new MeteredTransport(session));
+        }
+        List<Future<SendReport>> futures = new ArrayList<Future<SendReport>>(chunks.size());
+        try {
+            for (final Address[] chunk : chunks) {
+                futures.add(executor.submit(new Callable<SendReport>() {
+                    @Override
+                    public SendReport call() throws Exception {
+                        return sendChunk(pool, chunk);
+                    }
+                }));
+            }
+            SendReport report = new SendReport();
+            for (int i = 0; i < chunks.size(); i++) {
+                try {
+                    report.addAll(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    record(report, chunks.get(i), SendReport.Status.FAILED, String.valueOf(e.getCause()));
+                }
+            }
+            return report;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (Future<SendReport> future : futures) {
+                future.cancel(true);
+            }
+            throw new MessagingException("Interrupted.", e);
+        } finally {
+            for (Transport transport : pool) {
+                closeQuietly(transport);
+            }
+        }
+    }
+
+    /**
+     * 按批次交给非阻塞的 {@link SmtpEngine} 发送, 批次之间的并行由引擎的连接数决定.
+     *
+     * @param engine    SMTP 引擎
+     * @param chunkSize 每批最多的收件人数
+     * @return 每个收件人的发送结果
+     * @throws MessagingException 等待结果时被中断
+     */
+    public SendReport sendInChunks(SmtpEngine engine, int chunkSize) throws MessagingException {
+        List<Address[]> chunks = RecipientChunks.split(recipients, chunkSize);
+        List<SmtpFuture> futures = new ArrayList<SmtpFuture>(chunks.size());
+        for (Address[] chunk : chunks) {
+            futures.add(send(engine, chunk));
+        }
+        SendReport report = new SendReport();
+        for (int i = 0; i < chunks.size(); i++) {
+            Address[] chunk = chunks.get(i);
+            try {
+                SmtpResult result = futures.get(i).get();
+                Set<String> accepted = new HashSet<String>(result.getAcceptedRecipients());
+                for (Address recipient : chunk) {
+                    String address = RecipientChunks.address(recipient);
+                    Integer code = result.getRecipientReplyCodes().get(address);
+                    if (code != null && !accepted.contains(address)) {
+                        report.record(address, SendReport.Status.REJECTED, String.valueOf(code));
+                    } else if (code != null && result.isSuccess()) {
+                        report.record(address, SendReport.Status.SENT, result.getReply());
+                    } else {
+                        report.record(address, SendReport.Status.FAILED, result.getReply());
+                    }
+                }
+            } catch (ExecutionException e) {
+                record(report, chunk, SendReport.Status.FAILED, String.valueOf(e.getCause()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MessagingException("Interrupted.", e);
+            }
+        }
+        return report;
+    }
+
+    /**
+     * 从连接池中取一个连接发送一批. 部分地址被拒绝时仍然发送给其余的地址.
+     */
+    private SendReport sendChunk(BlockingQueue<Transport> pool, Address[] chunk) throws InterruptedException {
+        SendReport report = new SendReport();
+        Transport transport = pool.take();
+        try {
+            if (!transport.isConnected()) {
+                transport.connect();
+            }
+            MeteredTransport.checkSize(transport, size());
+            RawMessage message = new RawMessage(session);
+            message.setEnvelopeFrom(envelopeFrom);
+            message.setSendPartial(true);
+            transport.sendMessage(message, chunk);
+            String reply = transport instanceof SMTPTransport
+                    ? ((SMTPTransport) transport).getLastServerResponse().trim() : null;
+            record(report, chunk, SendReport.Status.SENT, reply);
+        } catch (SendFailedException e) {
+            record(report, e.getValidSentAddresses(), SendReport.Status.SENT, null);
+            record(report, e.getValidUnsentAddresses(), SendReport.Status.FAILED, e.getMessage());
+            record(report, e.getInvalidAddresses(), SendReport.Status.REJECTED, e.getMessage());
+            Exception next = e.getNextException();
+            while (next instanceof MessagingException) {
+                if (next instanceof SMTPAddressFailedException) {//每个被拒绝的地址的应答
+                    String address = RecipientChunks.address(((SMTPAddressFailedException) next).getAddress());
+                    SendReport.Status status = report.getStatus(address);
+                    report.record(address, status == null ? SendReport.Status.REJECTED : status,
+                            next.getMessage().trim());
+                }
+                next = ((MessagingException) next).getNextException();
+            }
+        } catch (MessagingException e) {
+            record(report, chunk, SendReport.Status.FAILED, e.getMessage());
+            closeQuietly(transport);
+        } finally {
+            pool.add(transport);
+        }
+        return report;
+    }
+
+    private static void record(SendReport report, Address[] addresses, SendReport.Status status, String message) {
+        if (addresses == null) {
+            return;
+        }
+        for (Address address : addresses) {
+            report.record(RecipientChunks.address(address), status, message);
+        }
+    }
+
+    private static void closeQuietly(Transport transport) {
+        try {
+            transport.close();
+        } catch (MessagingException ignore) {
+        }
+    }
+
+    /**
+     * 内容是序列化好的字节的邮件, 输出时不再处理头部和内容.
+     */
+    private class RawMessage extends SMTPMessage {
+        RawMessage(Session session) {
+            super(session);
+        }
+
+        @Override
+        protected void updateHeaders() {
+            //内容已经序列化
+        }
+
+        @Override
+        public void writeTo(OutputStream os, String[] ignoreList) throws IOException {
+            MailPayload.this.writeTo(os);
+            os.flush();
+        }
+    }
+}
@@ -1,7 +1,9 @@
 package com.youthlin.utils.mail;
 
+import com.youthlin.utils.mail.nio.SmtpEngine;
+import com.youthlin.utils.mail.nio.SmtpFuture;
+import com.youthlin.utils.mail.nio.SmtpResult;
 import net.markenwerk.utils.mail.dkim.DkimMessage;
-import net.markenwerk.utils.mail.dkim.DkimSigner;
 
 import javax.activation.DataHandler;
 import javax.activation.FileDataSource;
@@ -9,6 +11,7 @@ import javax.mail.Address;
 import javax.mail.Authenticator;
 import javax.mail.BodyPart;
 import javax.mail.Message;
+import javax.mail.Part;
 import javax.mail.MessagingException;
 import javax.mail.PasswordAuthentication;
 import javax.mail.Session;
@@ -21,14 +24,30 @@ import javax.mail.internet.MimeMultipart;
 import javax.mail.internet.MimeUtility;
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 import java.security.interfaces.RSAPrivateKey;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * SMTP 邮件发送工具.
@@ -52,11 +71,16 @@ import java.util.Properties;
  *      .bcc("bcc")//密送
  *      .subject("subject")//主题
  *      .text("content")//只能设置一次内容. 或[html("html content")][content("plain",false)][content("html",true);]
+ *                      //也可以是 Reader/InputStream/ContentSupplier, 发送时才读取
  *      .attachment("path/to/file", "cid")//内嵌附件
  *      .attachment("path/to/file")//普通附件
  *      .attachment(file)//普通附件
+ *      .attachment(SharedAttachment.of(file))//多封邮件共享的附件, 只编码一次
+ *      .largeAttachment(file)//大附件, 发送时分块编码
+ *      .linkOversizeAttachments(linker)//超过服务器 SIZE 限制时把附件转为链接, 否则发送前直接失败
  *      .dkim(new File("D:/key.der"), "youthlin.com", "xxx.youthlin")//验证发信人身份
- *      .send();//发送
+ *      //或先 DkimSignerRegistry.getDefault().register(...) 再 .dkim("youthlin.com", "xxx.youthlin")
+ *      .send();//发送. 大量发信时可以用 send(smtpEngine) 异步发送
  * </pre>
  * <p>
  * 使用 DKIM 验证发信人身份：
@@ -81,15 +105,24 @@ import java.util.Properties;
 @SuppressWarnings({"WeakerAccess", "SameParameterValue", "unused", "UnusedReturnValue"})
 public class MailSender {
     //region //field
-    private static final String[] EMPTY_ARRAY = new String[0];
     private static final String UTF_8 = "UTF-8";//默认字符编码
+    private static final int HEADER_OVERHEAD = 256;//Date, Message-ID, MIME-Version, multipart 的 Content-Type 等
+    private static final int PART_OVERHEAD = 160;//分隔线和每个部分的头部
+    private static final int DKIM_OVERHEAD = 600;//DKIM-Signature 头部(2048 位密钥)
     private final MimeMultipart content = new MimeMultipart();//邮件的所有内容(body+Attachment)
     private final BodyPart body = new MimeBodyPart();//body
     private final List<BodyPart> attachments = new ArrayList<BodyPart>();//attachments
+    private final Map<BodyPart, File> attachmentFiles = new IdentityHashMap<BodyPart, File>();//来自文件的附件
+    private final Map<BodyPart, File> unprepared = new IdentityHashMap<BodyPart, File>();//还没有检测类型和编码的附件
+    private boolean partsChanged = true;//toMessage() 时是否需要重新组装 content
+    private AttachmentLinker linker;//超过大小限制时把附件转为链接
     private String charset = UTF_8;
     private boolean contentHasSet = false;//是否已经设置过内容
+    private String bodyText;//正文原文, 生成模板时使用
+    private String bodyType;//正文类型
+    private boolean bodyStreaming = false;//正文是否来自流
     private MimeMessage msg;//每次设置的 Message 主体
-    private DkimSigner signer;//DKIM 邮件认证
+    private DkimSignerRegistry.Entry dkim;//DKIM 邮件认证
     //endregion //field
 
     private MailSender() {
@@ -220,42 +253,21 @@ public class MailSender {
     }
 
     private Address[] toAddresses(String[] emails, String[] names) throws AddressException {
-        int eLen = emails.length;
-        Address[] addresses = new Address[eLen];
-        if (names != null && names.length == eLen) {//email 和 name 能对上时
-            try {
-                for (int i = 0; i < eLen; i++) {
-                    addresses[i] = new InternetAddress(emails[i], names[i], charset);
-                }
-                return addresses;
-            } catch (UnsupportedEncodingException ignore) {
-            }
-        }
-        for (int i = 0; i < eLen; i++) {//对不上 或 异常
-            addresses[i] = new InternetAddress(emails[i]);
-        }
-        return addresses;
+        return toAddresses(AddressParser.getInstance(charset).parse(emails, names));
     }
 
     private Address[] toAddresses(Collection<String> emails, Collection<String> names) throws AddressException {
-        int eLen = emails.size();
-        Address[] addresses = new Address[eLen];
-        if (names != null && names.size() == eLen) {//email 和 name 能对上时
-            try {
-                String[] nameArr = names.toArray(EMPTY_ARRAY);
-                int i = 0;
-                for (String email : emails) {
-                    addresses[i] = new InternetAddress(email, nameArr[i++], charset);
-                }
-                return addresses;
-            } catch (UnsupportedEncodingException ignore) {
-            }
-        }
-        int i = 0;
-        for (String email : emails) {
-            addresses[i++] = new InternetAddress(email);
+        return toAddresses(AddressParser.getInstance(charset).parse(emails, names));
+    }
+
+    /**
+     * 有不合法的地址时抛出第一个地址的异常. 需要逐个处理不合法地址时请直接使用 {@link AddressParser}.
+     */
+    private static Address[] toAddresses(AddressParser.Result result) throws AddressException {
+        if (!result.isAllValid()) {
+            throw result.getInvalid().get(0).getError();
         }
-        return addresses;
+        return result.addresses();
     }
 
     private MailSender addRecipients(Message.RecipientType type, Address[] addresses) throws MessagingException {
@@ -278,6 +290,22 @@ public class MailSender {
         return content(plain, false);
     }
 
+    public MailSender html(Reader html) throws MessagingException {
+        return content(html, true);
+    }
+
+    public MailSender text(Reader plain) throws MessagingException {
+        return content(plain, false);
+    }
+
+    public MailSender html(ContentSupplier<? extends Reader> html) throws MessagingException {
+        return content(html, true);
+    }
+
+    public MailSender text(ContentSupplier<? extends Reader> plain) throws MessagingException {
+        return content(plain, false);
+    }
+
     /**
      * 设置邮件内容.
      * <p>
@@ -290,15 +318,80 @@ public class MailSender {
      * @throws MessagingException    异常
      */
     public MailSender content(String content, boolean isHtml) throws MessagingException {
+        checkContent();
+        bodyText = content;
+        bodyType = contentType(isHtml);
+        body.setContent(content, bodyType);
+        return this;
+    }
+
+    /**
+     * 从 Reader 读取邮件内容.
+     * <p>
+     * 内容在发送时才读取, 边读边编码写入连接, 不会在内存中保存完整的内容. Reader 只能读取一次,
+     * 发送后会被关闭; 需要多次读取(如发送失败重试)时请使用 {@link #content(ContentSupplier, boolean)}.
+     *
+     * @param content 内容
+     * @param isHtml  是否是 HTML 内容
+     * @return this
+     * @throws MessagingException 异常
+     */
+    public MailSender content(Reader content, boolean isHtml) throws MessagingException {
+        checkContent();
+        return streamContent(StreamDataSource.of(contentType(isHtml), charset, content));
+    }
+
+    /**
+     * 从字节流读取邮件内容, 字节流应当是 newInstance 时指定的字符集编码的文本.
+     *
+     * @see #content(Reader, boolean)
+     */
+    public MailSender content(InputStream content, boolean isHtml) throws MessagingException {
+        checkContent();
+        return streamContent(StreamDataSource.of(contentType(isHtml), content));
+    }
+
+    /**
+     * 发送时才调用 supplier 获取内容, 每次读取内容都会重新调用.
+     *
+     * @see #content(Reader, boolean)
+     */
+    public MailSender content(ContentSupplier<? extends Reader> content, boolean isHtml) throws MessagingException {
+        checkContent();
+        return streamContent(StreamDataSource.of(contentType(isHtml), charset, content));
+    }
+
+    /**
+     * 发送时才调用 supplier 获取字节流内容, 字节流应当是 newInstance 时指定的字符集编码的文本.
+     *
+     * @see #content(Reader, boolean)
+     */
+    public MailSender contentStream(ContentSupplier<? extends InputStream> content, boolean isHtml)
+            throws MessagingException {
+        checkContent();
+        return streamContent(StreamDataSource.ofStream(contentType(isHtml), content));
+    }
+
+    private void checkContent() {
         if (contentHasSet) {
             throw new IllegalStateException("Content already set.");
         }
         contentHasSet = true;
+    }
+
+    private String contentType(boolean isHtml) {
         if (isHtml) {
-            body.setContent(content, "text/html;charset=" + charset);
-        } else {
-            body.setContent(content, "text/plain;charset=" + charset);
+            return "text/html;charset=" + charset;
         }
+        return "text/plain;charset=" + charset;
+    }
+
+    private MailSender streamContent(StreamDataSource dataSource) throws MessagingException {
+        bodyType = dataSource.getContentType();
+        bodyStreaming = true;
+        body.setDataHandler(new DataHandler(dataSource));
+        //指定传输编码, 避免 javax.mail 预先读取全部内容来检测编码
+        body.setHeader("Content-Transfer-Encoding", "quoted-printable");
         return this;
     }
     //endregion //content
@@ -341,24 +434,85 @@ public class MailSender {
         if (!file.exists() || !file.isFile()) {
             throw new IllegalArgumentException("File Not Found: " + file.getAbsolutePath());
         }
-        BodyPart attach = new MimeBodyPart();
+        BodyPart attach = new MimeBodyPart();//占位, 由 prepareAttachments() 或 toMessage() 替换为准备好的附件
         attach.setDataHandler(new DataHandler(new FileDataSource(file)));
-        try {
-            attach.setFileName(MimeUtility.encodeWord(file.getName(), charset, null));
-        } catch (UnsupportedEncodingException ignore) {
-        }
         if (cid != null) {
             attach.setHeader("Content-ID", cid);
         }
         attachments.add(attach);
+        attachmentFiles.put(attach, file);
+        unprepared.put(attach, file);
+        partsChanged = true;
+        return this;
+    }
+
+    /**
+     * 带大附件.
+     * <p>
+     * 发送时才内存映射文件, 分块 base64 编码后直接写入传输流, 堆内存占用与文件大小无关.
+     * 注意: 设置了 DKIM 时签名需要读取整个正文, 仍会占用与附件大小相当的内存.
+     *
+     * @param file 附件
+     * @param cid  附件别名, 可以为 null
+     * @return this
+     * @throws MessagingException 异常
+     */
+    public MailSender largeAttachment(File file, String cid) throws MessagingException {
+        if (!file.exists() || !file.isFile()) {
+            throw new IllegalArgumentException("File Not Found: " + file.getAbsolutePath());
+        }
+        BodyPart attach = new MappedFileBodyPart(file, charset, cid);
+        attachments.add(attach);
+        attachmentFiles.put(attach, file);
+        partsChanged = true;
+        return this;
+    }
+
+    public MailSender largeAttachment(File file) throws MessagingException {
+        return largeAttachment(file, null);
+    }
+
+    /**
+     * 带共享附件. 附件内容只编码一次, 所有引用它的邮件直接输出编码后的字节.
+     *
+     * @param attachment 共享附件
+     * @return this
+     * @throws MessagingException 编码附件时出错
+     * @see SharedAttachment
+     */
+    public MailSender attachment(SharedAttachment attachment) throws MessagingException {
+        return attachment(attachment, null);
+    }
+
+    public MailSender attachment(SharedAttachment attachment, String cid) throws MessagingException {
+        BodyPart attach = attachment.toBodyPart(cid);
+        attachments.add(attach);
+        attachmentFiles.put(attach, attachment.getFile());
+        partsChanged = true;
+        return this;
+    }
+
+    /**
+     * 邮件超过服务器声明的大小限制(SIZE)时, 从最大的附件开始逐个上传并替换为链接, 直到估计大小不超过限制.
+     * 没有设置时超过限制的邮件直接抛出 {@link MessageTooLargeException}.
+     *
+     * @param linker 上传附件并返回下载链接
+     * @return this
+     */
+    public MailSender linkOversizeAttachments(AttachmentLinker linker) {
+        this.linker = linker;
         return this;
     }
     //endregion attachment
 
     //region //dkim
+
+    /**
+     * 使用 DKIM 签名. 私钥通过 {@link DkimSignerRegistry#getDefault()} 缓存, 同一个文件只解析一次.
+     */
     public MailSender dkim(File privateDERKey, String domain, String selector) {
         try {
-            signer = new DkimSigner(domain, selector, privateDERKey);
+            dkim = DkimSignerRegistry.getDefault().getOrRegister(domain, selector, privateDERKey);
         } catch (Exception e) {
             throw new IllegalArgumentException("dkim exception. file = " + privateDERKey.getAbsolutePath()
                     + ", domain = " + domain + ", selector = " + selector, e);
@@ -372,7 +526,7 @@ public class MailSender {
 
     public MailSender dkim(InputStream privateDERKey, String domain, String selector) {
         try {
-            signer = new DkimSigner(domain, selector, privateDERKey);
+            dkim = DkimSignerRegistry.newEntry(domain, selector, privateDERKey);
         } catch (Exception e) {
             throw new IllegalArgumentException("dkim exception. file = " + privateDERKey
                     + ", domain = " + domain + ", selector = " + selector, e);
@@ -381,32 +535,394 @@ public class MailSender {
     }
 
     public MailSender dkim(RSAPrivateKey privateKey, String domain, String selector) {
-        signer = new DkimSigner(domain, selector, privateKey);
+        dkim = DkimSignerRegistry.newEntry(domain, selector, privateKey);
+        return this;
+    }
+
+    /**
+     * 使用已在 {@link DkimSignerRegistry#getDefault()} 中注册的私钥签名.
+     *
+     * @throws IllegalArgumentException 没有注册时抛出
+     */
+    public MailSender dkim(String domain, String selector) {
+        DkimSignerRegistry.Entry entry = DkimSignerRegistry.getDefault().get(domain, selector);
+        if (entry == null) {
+            throw new IllegalArgumentException("dkim key not registered. domain = " + domain + ", selector = " + selector);
+        }
+        return dkim(entry);
+    }
+
+    public MailSender dkim(DkimSignerRegistry.Entry entry) {
+        dkim = entry;
         return this;
     }
     //endregion dkim
 
+    /**
+     * 在线程池中并行准备文件附件: 检测类型和传输编码、编码文件名, 不超过 1M 的文件同时完成内容编码,
+     * 发送时直接写出编码好的字节. 适合带有大量内嵌图片的邮件, 线程池可以是 ForkJoinPool.
+     * <p>
+     * 不调用时由 {@link #toMessage()} 在当前线程中逐个准备, 同样在发送之前完成.
+     *
+     * @param executor 线程池
+     * @return this
+     * @throws MessagingException 读取或编码附件失败, 或等待时被中断
+     */
+    public MailSender prepareAttachments(ExecutorService executor) throws MessagingException {
+        prepare(executor);
+        return this;
+    }
+
+    /**
+     * @param executor 为 null 时在当前线程中准备
+     */
+    private void prepare(ExecutorService executor) throws MessagingException {
+        if (unprepared.isEmpty()) {
+            return;
+        }
+        List<Integer> indexes = new ArrayList<Integer>(unprepared.size());
+        List<Future<BodyPart>> futures = new ArrayList<Future<BodyPart>>(unprepared.size());
+        for (int i = 0; i < attachments.size(); i++) {
+            BodyPart part = attachments.get(i);
+            final File file = unprepared.get(part);
+            if (file == null) {
+                continue;
+            }
+            final String cid = ((MimeBodyPart) part).getHeader("Content-ID", null);
+            if (executor == null) {
+                replace(i, PreparedBodyPart.prepare(file, charset, cid));
+                continue;
+            }
+            indexes.add(i);
+            futures.add(executor.submit(new Callable<BodyPart>() {
+                @Override
+                public BodyPart call() throws Exception {
+                    return PreparedBodyPart.prepare(file, charset, cid);
+                }
+            }));
+        }
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                replace(indexes.get(i), futures.get(i).get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof MessagingException) {
+                throw (MessagingException) cause;
+            }
+            throw new MessagingException("Can not prepare attachment.", cause instanceof Exception ? (Exception) cause : e);
+        }
+    }
+
+    private void replace(int index, BodyPart prepared) {
+        BodyPart old = attachments.set(index, prepared);
+        File file = unprepared.remove(old);
+        attachmentFiles.remove(old);
+        attachmentFiles.put(prepared, file);
+        partsChanged = true;
+    }
+
+    /**
+     * 生成邮件.
+     * <p>
+     * 设置了 DKIM 时, 返回的邮件在输出时才签名, 签名器属于调用本方法的线程, 请在同一个线程中发送或序列化.
+     *
+     * @return 邮件
+     * @throws MessagingException 异常
+     */
     public Message toMessage() throws MessagingException {
-        content.removeBodyPart(body);//防止多次调用添加多次
-        content.addBodyPart(body);//顺序：body 在 attachment 之前
-        for (BodyPart attach : attachments) {
-            content.removeBodyPart(attach);
-            content.addBodyPart(attach);
+        prepare(null);
+        if (partsChanged) {//多次调用时不重复添加
+            for (int i = content.getCount() - 1; i >= 0; i--) {
+                content.removeBodyPart(i);
+            }
+            content.addBodyPart(body);//顺序：body 在 attachment 之前
+            for (BodyPart attach : attachments) {
+                content.addBodyPart(attach);
+            }
+            partsChanged = false;
         }
         msg.setContent(content);
-        if (signer != null) {
-            return new DkimMessage(msg, signer);
+        if (dkim != null) {
+            return new DkimMessage(msg, dkim.signer());
         }
         return msg;
     }
 
+    /**
+     * 编译为邮件模板, 用于给大量收件人发送相同结构的邮件.
+     * <p>
+     * 主题和正文中可以使用 <code>${name}</code> 占位符; 这里设置的收件人(To/Bcc)不会进入模板, 发送时再指定.
+     * 抄送会让每封邮件都发给整个抄送列表, 所以设置了抄送(Cc)时不能编译为模板.
+     * 设置了 DKIM 时每封邮件仍要为签名重建一次, 模板没有性能上的好处, 见 {@link MailTemplate}.
+     *
+     * @return 不可变的模板
+     * @throws MessagingException 异常
+     * @throws IllegalStateException 正文是流式内容或设置了抄送时
+     * @see MailTemplate
+     */
+    public MailTemplate toTemplate() throws MessagingException {
+        if (bodyStreaming) {
+            throw new IllegalStateException("Streaming content can not be used as template.");
+        }
+        toMessage();
+        if (msg.getRecipients(Message.RecipientType.CC) != null) {
+            throw new IllegalStateException("Cc can not be used in template.");
+        }
+        msg.saveChanges();//确定各附件的 Content-Type 和传输编码
+        String type = bodyType == null ? "text/plain;charset=" + charset : bodyType;
+        return new MailTemplate(msg.getSession(), charset, msg, bodyText, type, attachments, dkim);
+    }
+
+    /**
+     * 把邮件序列化为字节(设置了 DKIM 时同时完成签名), 之后可以用不同的信封多次发送.
+     *
+     * @return 序列化好的邮件
+     * @throws MessagingException 异常
+     * @see MailPayload
+     */
+    public MailPayload toPayload() throws MessagingException {
+        return toPayload(false);
+    }
+
+    /**
+     * @param offHeap 是否把序列化结果放在堆外内存
+     */
+    public MailPayload toPayload(boolean offHeap) throws MessagingException {
+        return MailPayload.render(toMessage(), offHeap);
+    }
+
+    /**
+     * 在线程池中生成邮件、完成 DKIM 签名并序列化, 调用后不要再修改这个 MailSender.
+     * <p>
+     * 签名是 CPU 密集的操作, 可以作为独立的阶段交给专门的线程池, 发送线程只负责网络 I/O.
+     *
+     * @param executor 签名使用的线程池
+     * @return 序列化好的邮件
+     */
+    public Future<MailPayload> toPayload(ExecutorService executor) {
+        return executor.submit(new Callable<MailPayload>() {
+            @Override
+            public MailPayload call() throws Exception {
+                return toPayload();
+            }
+        });
+    }
+
+    /**
+     * 发送. 连接后先用 {@link #estimateSize()} 与服务器声明的 SIZE 比较, 超过时不传输内容:
+     * 设置了 {@link #linkOversizeAttachments(AttachmentLinker)} 时把附件转为链接后发送, 否则抛出异常.
+     *
+     * @throws MessageTooLargeException 超过服务器的大小限制
+     * @throws MessagingException       异常
+     */
     public void send() throws MessagingException {
-        Transport.send(toMessage(), msg.getAllRecipients());
+        Address[] recipients = msg.getAllRecipients();
+        Transport transport = MeteredTransport.connect(msg.getSession(), recipients);
+        try {
+            long limit = MeteredTransport.sizeLimit(transport);
+            if (limit > 0) {
+                long size = estimateSize();
+                if (size > limit && linker != null) {
+                    size = linkAttachments(size, limit);
+                }
+                if (size > limit) {
+                    throw new MessageTooLargeException(size, limit);
+                }
+            }
+            Message message = toMessage();
+            message.saveChanges();
+            transport.sendMessage(message, recipients);
+        } finally {
+            transport.close();
+        }
+    }
+
+    /**
+     * 估算邮件编码后的大小, 不序列化邮件也不读取附件内容: 正文按 javax.mail 会选择的传输编码计算,
+     * 附件按 base64 编码后的大小计算, 头部和分隔线按固定开销估计.
+     * <p>
+     * 从 Reader/InputStream 读取的正文在发送前大小未知, 不计入.
+     *
+     * @return 估计的字节数
+     * @throws MessagingException 异常
+     */
+    public long estimateSize() throws MessagingException {
+        long size = HEADER_OVERHEAD + PART_OVERHEAD + textSize(bodyText);
+        @SuppressWarnings("unchecked")
+        Enumeration<String> lines = msg.getAllHeaderLines();
+        while (lines.hasMoreElements()) {
+            size += lines.nextElement().length() + 2;
+        }
+        if (dkim != null) {
+            size += DKIM_OVERHEAD;
+        }
+        for (BodyPart attach : attachments) {
+            size += PART_OVERHEAD + partSize(attach);
+        }
+        return size;
+    }
+
+    private long partSize(BodyPart part) throws MessagingException {
+        if (part instanceof EncodedBodyPart) {
+            long size = ((EncodedBodyPart) part).getEncodedSize();
+            if (size >= 0) {
+                return size;
+            }
+        }
+        File file = attachmentFiles.get(part);
+        if (file != null) {
+            return Base64Encoder.encodedLength(file.length());
+        }
+        try {
+            Object content = part.getContent();
+            if (content instanceof String) {
+                return textSize((String) content);
+            }
+        } catch (IOException ignore) {
+        }
+        return Math.max(0, part.getSize());
+    }
+
+    /**
+     * 和 {@link MimeUtility#getEncoding} 选择文本的传输编码一样: 全部是 ASCII 时 7bit,
+     * ASCII 较多时 quoted-printable, 否则 base64.
+     */
+    private long textSize(String text) {
+        if (text == null) {
+            return 0;
+        }
+        byte[] bytes;
+        try {
+            bytes = text.getBytes(charset);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        long nonAscii = 0;
+        for (byte b : bytes) {
+            if (b < 0) {
+                nonAscii++;
+            }
+        }
+        if (nonAscii == 0) {
+            return bytes.length;
+        }
+        if (bytes.length - nonAscii > nonAscii) {
+            long encoded = bytes.length + nonAscii * 2;//=XX
+            return encoded + encoded / 75 * 3;//软换行 =CRLF
+        }
+        return Base64Encoder.encodedLength(bytes.length);
+    }
+
+    /**
+     * 从最大的附件开始转为链接, 直到不超过限制
+     *
+     * @return 转换后估计的大小
+     */
+    private long linkAttachments(long size, long limit) throws MessagingException {
+        List<BodyPart> files = new ArrayList<BodyPart>(attachmentFiles.keySet());
+        final Map<BodyPart, Long> sizes = new IdentityHashMap<BodyPart, Long>();
+        for (BodyPart part : files) {
+            sizes.put(part, partSize(part));
+        }
+        Collections.sort(files, new Comparator<BodyPart>() {
+            @Override
+            public int compare(BodyPart o1, BodyPart o2) {
+                long s1 = sizes.get(o1);
+                long s2 = sizes.get(o2);
+                return s1 > s2 ? -1 : s1 < s2 ? 1 : 0;
+            }
+        });
+        for (BodyPart part : files) {
+            if (size <= limit) {
+                break;
+            }
+            File file = attachmentFiles.remove(part);
+            String url;
+            try {
+                url = linker.link(file);
+            } catch (IOException e) {
+                throw new MessagingException("Can not link attachment: " + file.getAbsolutePath(), e);
+            }
+            MimeBodyPart link = new MimeBodyPart();
+            String text = file.getName() + ": " + url + "\r\n";
+            link.setText(text, charset);
+            link.setDisposition(Part.INLINE);
+            attachments.set(attachments.indexOf(part), link);
+            unprepared.remove(part);
+            partsChanged = true;
+            size += textSize(text) - sizes.get(part);
+        }
+        return size;
+    }
+
+    /**
+     * 用于收件人很多的邮件: 只序列化一次, 收件人按域名分组、切分为批次后在多个连接上并行发送,
+     * 返回每个收件人的结果. 个别地址被拒绝不会导致整封邮件发送失败.
+     *
+     * @param chunkSize   每批最多的收件人数, 不要超过中继服务器对 RCPT 数量的限制
+     * @param connections 同时使用的连接数
+     * @param executor    执行发送的线程池
+     * @return 每个收件人的发送结果
+     * @throws MessagingException 异常
+     */
+    public SendReport sendInChunks(int chunkSize, int connections, ExecutorService executor)
+            throws MessagingException {
+        return toPayload().sendInChunks(chunkSize, connections, executor);
+    }
+
+    /**
+     * 分批交给非阻塞的 {@link SmtpEngine} 发送
+     */
+    public SendReport sendInChunks(SmtpEngine engine, int chunkSize) throws MessagingException {
+        return toPayload().sendInChunks(engine, chunkSize);
+    }
+
+    /**
+     * 序列化邮件后交给非阻塞的 {@link SmtpEngine} 异步发送, 适合大量发信.
+     * 默认的 {@link #send()} 仍然使用 javax.mail 的 Transport.
+     *
+     * @param engine SMTP 引擎
+     * @return 服务器应答后完成的 Future
+     * @throws MessagingException 生成邮件时的异常
+     */
+    public SmtpFuture send(SmtpEngine engine) throws MessagingException {
+        return toPayload().send(engine);
+    }
+
+    /**
+     * 交给 {@link SmtpEngine} 发送并等待服务器应答.
+     * <p>
+     * 适合在虚拟线程中大量并发调用: 网络 I/O 在引擎的事件循环中完成, 等待时不持有监视器锁, 不会钉住载体线程.
+     *
+     * @param engine SMTP 引擎
+     * @return 发送结果, 服务器拒绝时 {@link SmtpResult#isSuccess()} 为 false
+     * @throws MessagingException 生成邮件时的异常、连接失败或等待时被中断
+     * @see VirtualThreads
+     */
+    public SmtpResult sendAndWait(SmtpEngine engine) throws MessagingException {
+        SmtpFuture future = send(engine);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof MessagingException) {
+                throw (MessagingException) cause;
+            }
+            throw new MessagingException("Send failed.", cause instanceof Exception ? (Exception) cause : e);
+        }
     }
 
     /**
      * Session 构造器.
      * Session 是与服务器通信的前提环境, 如 host username password 等在此设置.
+     * 相同配置的 Session 会被缓存, 多次调用 toSession() 得到的是同一个 Session.
      * <p>
      * 示例:
      * <pre>
@@ -418,8 +934,19 @@ public class MailSender {
      * </pre>
      */
     public static class SessionBuilder {
+        private static final int DEFAULT_CACHE_SIZE = 64;
+        private static final Map<SessionKey, Session> CACHE = new LinkedHashMap<SessionKey, Session>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<SessionKey, Session> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        private static final Lock CACHE_LOCK = new ReentrantLock();
+        private static int cacheSize = DEFAULT_CACHE_SIZE;
         private final Properties props = new Properties();
         private Authenticator authenticator = null;
+        private String username;
+        private String password;
 
         private SessionBuilder() {
         }
@@ -438,6 +965,8 @@ public class MailSender {
          */
         public SessionBuilder auth(final String username, final String password) {
             props.put("mail.smtp.auth", true);
+            this.username = username;
+            this.password = password;
             authenticator = new Authenticator() {
                 @Override
                 protected PasswordAuthentication getPasswordAuthentication() {
@@ -488,8 +1017,104 @@ public class MailSender {
             return debug(true);
         }
 
+        /**
+         * 获取 Session.
+         * <p>
+         * 相同配置(属性和账号密码都相同)的 Session 会被缓存并共享, 不必每封邮件都重新创建.
+         * 缓存有数量上限, 超出时淘汰最久未使用的.
+         *
+         * @return 共享的 Session
+         * @see #toNewSession()
+         */
         public Session toSession() {
-            return Session.getInstance(props, authenticator);
+            SessionKey key = new SessionKey(props, username, password);
+            CACHE_LOCK.lock();
+            try {
+                Session session = CACHE.get(key);
+                if (session == null) {
+                    session = toNewSession();
+                    CACHE.put(key, session);
+                }
+                return session;
+            } finally {
+                CACHE_LOCK.unlock();
+            }
+        }
+
+        /**
+         * 总是创建新的 Session, 不使用缓存
+         */
+        public Session toNewSession() {
+            Properties copy = new Properties();
+            copy.putAll(props);//Session 持有 Properties 的引用, 复制一份避免之后的修改影响已创建的 Session
+            return Session.getInstance(copy, authenticator);
+        }
+
+        /**
+         * 设置 Session 缓存的数量上限, 默认 64.
+         */
+        public static void setCacheSize(int size) {
+            CACHE_LOCK.lock();
+            try {
+                cacheSize = Math.max(0, size);
+                Iterator<SessionKey> it = CACHE.keySet().iterator();
+                while (CACHE.size() > cacheSize && it.hasNext()) {
+                    it.next();
+                    it.remove();
+                }
+            } finally {
+                CACHE_LOCK.unlock();
+            }
+        }
+
+        public static void clearCache() {
+            CACHE_LOCK.lock();
+            try {
+                CACHE.clear();
+            } finally {
+                CACHE_LOCK.unlock();
+            }
+        }
+    }
+
+    /**
+     * Session 缓存的键: 规范化(按名称排序)后的属性和账号密码
+     */
+    private static final class SessionKey {
+        private final Map<String, String> props = new TreeMap<String, String>();
+        private final String username;
+        private final String password;
+        private final int hash;
+
+        private SessionKey(Properties properties, String username, String password) {
+            for (Map.Entry<Object, Object> entry : properties.entrySet()) {
+                props.put(String.valueOf(entry.getKey()), String.valueOf(entry.getValue()));
+            }
+            this.username = username;
+            this.password = password;
+            int h = props.hashCode();
+            h = 31 * h + (username == null ? 0 : username.hashCode());
+            h = 31 * h + (password == null ? 0 : password.hashCode());
+            this.hash = h;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof SessionKey)) {
+                return false;
+            }
+            SessionKey that = (SessionKey) o;
+            return hash == that.hash && props.equals(that.props)
+                    && (username == null ? that.username == null : username.equals(that.username))
+                    && (password == null ? that.password == null : password.equals(that.password));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
         }
     }
 }
@@ -0,0 +1,313 @@
+package com.youthlin.utils.mail;
+
+import com.sun.mail.util.LineOutputStream;
+import net.markenwerk.utils.mail.dkim.DkimMessage;
+
+import javax.mail.Address;
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimeUtility;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * 预编译的邮件模板.
+ * <p>
+ * 由 {@link MailSender#toTemplate()} 生成, 生成后不可变, 可以在多个线程间共享.
+ * 编译时发件人等头部只编码一次, 附件只编码一次并保存编码后的字节;
+ * 每个收件人只需要替换主题和正文中的 <code>${name}</code> 占位符, 然后直接输出, 不再重建 MIME 结构.
+ * <p>
+ * 示例:
+ * <pre>
+ * MailTemplate template = MailSender.newInstance(session)
+ *      .from("email", "DisplayName")
+ *      .subject("Hi ${name}")
+ *      .html("&lt;p&gt;Dear ${name}&lt;/p&gt;&lt;img src=\"cid:logo\"/&gt;")
+ *      .attachment("path/to/logo.png", "logo")
+ *      .toTemplate();
+ * Map&lt;String, String&gt; variables = new HashMap&lt;String, String&gt;();
+ * variables.put("name", "Lin");
+ * template.send(variables, "to");
+ * </pre>
+ * 没有提供值的占位符替换为空字符串.
+ * 模板不含收件人(To/Cc/Bcc), 每封邮件只发给发送时指定的收件人.
+ * 设置了 DKIM 时, 每个线程使用各自的签名器({@link DkimSignerRegistry}), 生成的邮件请在同一个线程中发送或序列化.
+ * <p>
+ * 注意: DKIM 签名库只能对 {@link DkimMessage} 签名, 它的构造方法会把整封邮件(包括编码好的附件)输出后重新解析,
+ * 所以设置了 DKIM 时每个收件人仍然要重建一次 MIME 结构, 模板在性能上没有好处, 只省去了重复设置发件人、附件等的代码.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class MailTemplate {
+    private static final String TRANSFER_ENCODING = "quoted-printable";
+    private static final String[] TEMPLATE_HEADERS = {"To", "Cc", "Bcc", "Subject", "Message-ID", "Date",
+            "MIME-Version", "Content-Type", "Content-Transfer-Encoding"};
+    private static final byte[] CRLF = {'\r', '\n'};
+    private final Session session;
+    private final String charset;
+    private final String[] headerLines;//已编码的固定头部
+    private final Text subject;
+    private final String encodedSubject;//主题不含占位符时预先编码
+    private final Text body;
+    private final byte[] bodyHeaders;//正文 BodyPart 的头部
+    private final String contentType;//multipart/mixed; boundary=...
+    private final byte[] boundary;
+    private final byte[] attachments;//编码好的附件(含分隔线和结束分隔线)
+    private final DkimSignerRegistry.Entry dkim;
+
+    MailTemplate(Session session, String charset, MimeMessage msg, String bodyText, String bodyType,
+                 List<BodyPart> attachmentParts, DkimSignerRegistry.Entry dkim) throws MessagingException {
+        this.session = session;
+        this.charset = charset;
+        this.dkim = dkim;
+        List<String> lines = new ArrayList<String>();
+        @SuppressWarnings("unchecked")
+        Enumeration<String> e = msg.getNonMatchingHeaderLines(TEMPLATE_HEADERS);
+        while (e.hasMoreElements()) {
+            lines.add(e.nextElement());
+        }
+        headerLines = lines.toArray(new String[lines.size()]);
+
+        String rawSubject = msg.getSubject();
+        subject = rawSubject == null ? null : Text.compile(rawSubject);
+        if (subject != null && !subject.hasVariables()) {
+            encodedSubject = msg.getHeader("Subject", null);
+        } else {
+            encodedSubject = null;
+        }
+        body = Text.compile(bodyText == null ? "" : bodyText);
+        bodyHeaders = ascii("Content-Type: " + bodyType + "\r\nContent-Transfer-Encoding: " + TRANSFER_ENCODING + "\r\n\r\n");
+
+        MimeMultipart multipart = new MimeMultipart();//借用 MimeMultipart 生成唯一的分隔符
+        contentType = multipart.getContentType();
+        String boundaryValue = new ContentType(contentType).getParameter("boundary");
+        boundary = ascii("--" + boundaryValue);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            for (BodyPart part : attachmentParts) {
+                out.write(boundary);
+                out.write(CRLF);
+                part.writeTo(out);
+                out.write(CRLF);
+            }
+            out.write(boundary);
+            out.write(ascii("--"));
+            out.write(CRLF);
+        } catch (IOException ex) {
+            throw new MessagingException("Can not encode attachments.", ex);
+        }
+        attachments = out.toByteArray();
+    }
+
+    /**
+     * 为一个收件人生成邮件.
+     *
+     * @param variables 占位符的值
+     * @param to        收件人
+     * @return 可以直接交给 {@link Transport} 发送的邮件
+     * @throws MessagingException 异常
+     */
+    public MimeMessage newMessage(Map<String, String> variables, Address... to) throws MessagingException {
+        if (variables == null) {
+            variables = Collections.emptyMap();
+        }
+        TemplateMessage message = new TemplateMessage(variables);
+        for (String line : headerLines) {
+            message.addHeaderLine(line);
+        }
+        message.setRecipients(javax.mail.Message.RecipientType.TO, to);
+        if (encodedSubject != null) {
+            message.setHeader("Subject", encodedSubject);
+        } else if (subject != null) {
+            message.setSubject(subject.render(variables), charset);
+        }
+        if (dkim != null) {
+            //会输出并重新解析整封邮件, 见类的说明
+            return new DkimMessage(message, dkim.signer());
+        }
+        return message;
+    }
+
+    public MimeMessage newMessage(Map<String, String> variables, String to) throws MessagingException {
+        return newMessage(variables, new InternetAddress(to));
+    }
+
+    public MimeMessage newMessage(Map<String, String> variables, String to, String name) throws MessagingException {
+        try {
+            return newMessage(variables, new InternetAddress(to, name, charset));
+        } catch (UnsupportedEncodingException e) {
+            return newMessage(variables, to);
+        }
+    }
+
+    /**
+     * 为一个收件人生成邮件并序列化(设置了 DKIM 时同时签名).
+     */
+    public MailPayload toPayload(Map<String, String> variables, Address... to) throws MessagingException {
+        return MailPayload.render(newMessage(variables, to), false);
+    }
+
+    /**
+     * 在线程池中生成、签名并序列化, 签名作为独立的阶段不占用发送线程.
+     */
+    public Future<MailPayload> toPayload(ExecutorService executor, final Map<String, String> variables,
+                                         final Address... to) {
+        return executor.submit(new Callable<MailPayload>() {
+            @Override
+            public MailPayload call() throws Exception {
+                return toPayload(variables, to);
+            }
+        });
+    }
+
+    public void send(Map<String, String> variables, Address... to) throws MessagingException {
+        MimeMessage message = newMessage(variables, to);
+        MeteredTransport.sendMetered(message, message.getAllRecipients(), 0);
+    }
+
+    public void send(Map<String, String> variables, String to) throws MessagingException {
+        send(variables, new InternetAddress(to));
+    }
+
+    public void send(Map<String, String> variables, String to, String name) throws MessagingException {
+        MimeMessage message = newMessage(variables, to, name);
+        MeteredTransport.sendMetered(message, message.getAllRecipients(), 0);
+    }
+
+    private static byte[] ascii(String s) {
+        try {
+            return s.getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * 单个收件人的邮件. 头部照常保存在 MimeMessage 中, 内容直接按模板输出.
+     */
+    private class TemplateMessage extends MimeMessage {
+        private final Map<String, String> variables;
+
+        TemplateMessage(Map<String, String> variables) {
+            super(MailTemplate.this.session);
+            this.variables = variables;
+        }
+
+        @Override
+        protected void updateHeaders() throws MessagingException {
+            setHeader("MIME-Version", "1.0");
+            setHeader("Content-Type", contentType);
+            updateMessageID();
+        }
+
+        @Override
+        public void writeTo(OutputStream os, String[] ignoreList) throws IOException, MessagingException {
+            if (!saved) {
+                saveChanges();
+            }
+            LineOutputStream los = new LineOutputStream(os);
+            @SuppressWarnings("unchecked")
+            Enumeration<String> e = getNonMatchingHeaderLines(ignoreList);
+            while (e.hasMoreElements()) {
+                los.writeln(e.nextElement());
+            }
+            los.writeln();
+
+            os.write(boundary);
+            os.write(CRLF);
+            os.write(bodyHeaders);
+            OutputStream encoder = MimeUtility.encode(new FilterOutputStream(os) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();//不关闭底层的传输流
+                }
+            }, TRANSFER_ENCODING);
+            encoder.write(body.render(variables).getBytes(charset));
+            encoder.close();
+            os.write(CRLF);
+            os.write(attachments);
+            os.flush();
+        }
+    }
+
+    /**
+     * 预先切分好的文本: 字面量和占位符交替出现.
+     */
+    static final class Text {
+        private final String[] literals;//比 names 多一个
+        private final String[] names;
+        private final int literalLength;
+
+        private Text(String[] literals, String[] names) {
+            this.literals = literals;
+            this.names = names;
+            int len = 0;
+            for (String literal : literals) {
+                len += literal.length();
+            }
+            this.literalLength = len;
+        }
+
+        static Text compile(String text) {
+            List<String> literals = new ArrayList<String>();
+            List<String> names = new ArrayList<String>();
+            int from = 0;
+            int start;
+            while ((start = text.indexOf("${", from)) >= 0) {
+                int end = text.indexOf('}', start + 2);
+                if (end < 0) {
+                    break;
+                }
+                literals.add(text.substring(from, start));
+                names.add(text.substring(start + 2, end));
+                from = end + 1;
+            }
+            literals.add(text.substring(from));
+            return new Text(literals.toArray(new String[literals.size()]), names.toArray(new String[names.size()]));
+        }
+
+        boolean hasVariables() {
+            return names.length > 0;
+        }
+
+        String render(Map<String, String> variables) {
+            if (names.length == 0) {
+                return literals[0];
+            }
+            String[] values = new String[names.length];
+            int len = literalLength;
+            for (int i = 0; i < names.length; i++) {
+                String value = variables.get(names[i]);
+                values[i] = value == null ? "" : value;
+                len += values[i].length();
+            }
+            StringBuilder sb = new StringBuilder(len);
+            for (int i = 0; i < names.length; i++) {
+                sb.append(literals[i]).append(values[i]);
+            }
+            return sb.append(literals[names.length]).toString();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.youthlin.utils.mail;
+
+import javax.activation.FileTypeMap;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeUtility;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 大附件. 发送时按固定大小的窗口内存映射文件, 分块 base64 编码后直接写入传输流,
+ * 堆内存占用与文件大小无关.
+ * <p>
+ * 注意: DKIM 签名需要把整个正文读入内存计算摘要, 设置了 DKIM 的邮件使用大附件时仍会占用与文件大小相当的堆内存.
+ */
+final class MappedFileBodyPart extends EncodedBodyPart {
+    /**
+     * 每次映射的大小, 是 57 的整数倍, 保证不会有一行跨越两个窗口
+     */
+    private static final long WINDOW = Base64Encoder.BYTES_PER_LINE * 64L * 1024;
+    private final File file;
+
+    MappedFileBodyPart(File file, String charset, String cid) throws MessagingException {
+        this.file = file;
+        String name = file.getName();
+        try {
+            name = MimeUtility.encodeWord(name, charset, null);
+        } catch (UnsupportedEncodingException ignore) {
+        }
+        setHeader("Content-Type", FileTypeMap.getDefaultFileTypeMap().getContentType(file));
+        setFileName(name);
+        setHeader("Content-Transfer-Encoding", "base64");
+        if (cid != null) {
+            setHeader("Content-ID", cid);
+        }
+    }
+
+    @Override
+    protected void writeContent(OutputStream os) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            for (long position = 0; position < size; position += WINDOW) {
+                long len = Math.min(WINDOW, size - position);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, len);
+                Base64Encoder.encode(buffer, os, position + len >= size);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Override
+    protected InputStream getContentStream() throws MessagingException {
+        try {
+            return new Base64Encoder.EncodingInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (IOException e) {
+            throw new MessagingException("Can not read file: " + file.getAbsolutePath(), e);
+        }
+    }
+
+    @Override
+    long getEncodedSize() {
+        return Base64Encoder.encodedLength(file.length());
+    }
+}
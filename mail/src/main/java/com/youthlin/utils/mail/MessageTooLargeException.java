@@ -0,0 +1,30 @@
+package com.youthlin.utils.mail;
+
+import javax.mail.MessagingException;
+
+/**
+ * 邮件超过服务器声明的大小限制(EHLO 应答中的 SIZE), 在传输内容之前就放弃发送.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class MessageTooLargeException extends MessagingException {
+    private static final long serialVersionUID = 7260988451304785362L;
+    private final long size;
+    private final long limit;
+
+    public MessageTooLargeException(long size, long limit) {
+        super("Message size " + size + " exceeds fixed maximum message size " + limit);
+        this.size = size;
+        this.limit = limit;
+    }
+
+    /**
+     * @return 邮件的大小, 由 {@link MailSender#estimateSize()} 得到时是估计值
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+}
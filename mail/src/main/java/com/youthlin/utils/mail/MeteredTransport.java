@@ -0,0 +1,245 @@
+package com.youthlin.utils.mail;
+
+import com.sun.mail.smtp.SMTPTransport;
+import com.youthlin.utils.mail.event.SendEvent;
+import com.youthlin.utils.mail.event.SendListeners;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.URLName;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * 记录各阶段耗时的 SMTPTransport. 有 {@link SendListeners 监听器} 时每次 sendMessage 发布一个 {@link SendEvent}.
+ * <p>
+ * 连接耗时包括建立 TCP 连接(和隐式 TLS 握手)到读到问候语, TLS 耗时是 STARTTLS 及握手,
+ * 认证耗时是最后一次 EHLO 之后到连接完成. 复用的连接上发送时只统计 DATA 阶段.
+ */
+final class MeteredTransport extends SMTPTransport {
+    private String server;
+    private long connectStart;
+    private long connectNanos;
+    private long tlsNanos;
+    private long authNanos;
+    private long setupNanos;
+    private long helloEnd;
+    private boolean fresh;//刚建立的连接上还没有发过邮件
+    private boolean recording;
+    private int[] codes = new int[8];
+    private int codeCount;
+    private long bytes;
+
+    MeteredTransport(Session session) {
+        super(session, new URLName("smtp", null, -1, null, null, null), "smtp", false);
+    }
+
+    /**
+     * 和 {@link Transport#send(Message, Address[])} 一样: 建立连接、发送、关闭.
+     *
+     * @param size 邮件的大小(或估计值), 超过服务器在 EHLO 中声明的 SIZE 时不发送, 直接抛出异常; 不检查时传 0
+     */
+    static void sendMetered(Message message, Address[] addresses, long size) throws MessagingException {
+        if (SendListeners.isEmpty() && size <= 0) {
+            Transport.send(message, addresses);
+            return;
+        }
+        message.saveChanges();
+        Transport transport = connect(message.getSession(), addresses);
+        try {
+            checkSize(transport, size);
+            transport.sendMessage(message, addresses);
+        } finally {
+            transport.close();
+        }
+    }
+
+    /**
+     * 建立连接. 有监听器时使用 MeteredTransport, 连接失败也会发布事件.
+     */
+    static Transport connect(Session session, Address[] addresses) throws MessagingException {
+        if (addresses == null || addresses.length == 0) {
+            throw new SendFailedException("No recipient addresses");
+        }
+        if (SendListeners.isEmpty()) {
+            Transport transport = session.getTransport(addresses[0]);
+            transport.connect();
+            return transport;
+        }
+        MeteredTransport transport = new MeteredTransport(session);
+        try {
+            transport.connect();
+        } catch (MessagingException e) {
+            transport.publish(e, false, addresses.length, System.nanoTime() - transport.connectStart, 0);
+            throw e;
+        }
+        return transport;
+    }
+
+    /**
+     * @return 已连接的服务器在 EHLO 中声明的 SIZE, 没有声明或不限制时返回 0
+     */
+    static long sizeLimit(Transport transport) {
+        if (!(transport instanceof SMTPTransport)) {
+            return 0;
+        }
+        String size = ((SMTPTransport) transport).getExtensionParameter("SIZE");
+        if (size == null || size.trim().length() == 0) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(size.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 在发送 MAIL FROM 之前检查大小, 超过限制时抛出异常, 不浪费带宽传输注定被拒绝的内容
+     */
+    static void checkSize(Transport transport, long size) throws MessageTooLargeException {
+        long limit = sizeLimit(transport);
+        if (limit > 0 && size > limit) {
+            throw new MessageTooLargeException(size, limit);
+        }
+    }
+
+    @Override
+    protected synchronized boolean protocolConnect(String host, int port, String user, String password)
+            throws MessagingException {
+        if (port < 0) {//和 SMTPTransport 一样使用配置的端口
+            String configured = session.getProperty("mail.smtp.port");
+            server = host + ':' + (configured == null ? "25" : configured);
+        } else {
+            server = host + ':' + port;
+        }
+        connectStart = System.nanoTime();
+        connectNanos = tlsNanos = authNanos = setupNanos = helloEnd = 0;
+        boolean connected = super.protocolConnect(host, port, user, password);
+        long now = System.nanoTime();
+        if (connected) {
+            if (password != null && helloEnd > 0) {
+                authNanos = now - helloEnd;
+            }
+            setupNanos = now - connectStart;
+            fresh = true;
+        }
+        return connected;
+    }
+
+    @Override
+    protected void helo(String domain) throws MessagingException {
+        greeted();
+        super.helo(domain);
+        helloEnd = System.nanoTime();
+    }
+
+    @Override
+    protected boolean ehlo(String domain) throws MessagingException {
+        greeted();
+        boolean ok = super.ehlo(domain);
+        helloEnd = System.nanoTime();
+        return ok;
+    }
+
+    /**
+     * 第一次 EHLO/HELO 之前已经读到了问候语
+     */
+    private void greeted() {
+        if (connectNanos == 0 && connectStart > 0) {
+            connectNanos = System.nanoTime() - connectStart;
+        }
+    }
+
+    @Override
+    protected void startTLS() throws MessagingException {
+        long start = System.nanoTime();
+        super.startTLS();
+        tlsNanos = System.nanoTime() - start;
+    }
+
+    @Override
+    protected int readServerResponse() throws MessagingException {
+        int code = super.readServerResponse();
+        if (recording) {
+            if (codeCount == codes.length) {
+                codes = Arrays.copyOf(codes, codeCount * 2);
+            }
+            codes[codeCount++] = code;
+        }
+        return code;
+    }
+
+    @Override
+    protected OutputStream data() throws MessagingException {
+        return new FilterOutputStream(super.data()) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytes++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                bytes += len;
+            }
+        };
+    }
+
+    @Override
+    public synchronized void sendMessage(Message message, Address[] addresses) throws MessagingException {
+        if (SendListeners.isEmpty()) {
+            super.sendMessage(message, addresses);
+            return;
+        }
+        boolean reused = !fresh;
+        fresh = false;
+        recording = true;
+        codeCount = 0;
+        bytes = 0;
+        TimedDkimSigner.take();
+        long start = System.nanoTime();
+        Throwable error = null;
+        try {
+            super.sendMessage(message, addresses);
+        } catch (MessagingException e) {
+            error = e;
+            throw e;
+        } catch (RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            recording = false;
+            publish(error, reused, addresses == null ? 0 : addresses.length, 0, System.nanoTime() - start);
+        }
+    }
+
+    private void publish(Throwable error, boolean reused, int recipients, long connectTotal, long sendNanos) {
+        long dkim = TimedDkimSigner.take();
+        SendEvent.Builder builder = SendEvent.newBuilder(server)
+                .error(error)
+                .reused(reused)
+                .recipients(recipients)
+                .bytes(bytes)
+                .dkim(dkim)
+                .data(Math.max(0, sendNanos - dkim));
+        if (reused) {
+            builder.total(sendNanos);
+        } else {
+            builder.connect(connectNanos > 0 ? connectNanos : connectTotal).tls(tlsNanos).auth(authNanos)
+                    .total(setupNanos + connectTotal + sendNanos);
+        }
+        for (int i = 0; i < codeCount; i++) {
+            builder.replyCode(codes[i]);
+        }
+        codeCount = 0;
+        SendListeners.publish(builder.build(error == null));
+    }
+}
@@ -0,0 +1,118 @@
+package com.youthlin.utils.mail;
+
+import javax.activation.DataHandler;
+import javax.activation.FileDataSource;
+import javax.activation.FileTypeMap;
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeUtility;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * 发送前准备好的文件附件: 类型、文件名和传输编码都已确定, 内容已经编码, 输出时直接写出编码后的字节.
+ * <p>
+ * 由 {@link #prepare(File, String, String)} 生成, 可以在线程池中并行准备多个附件.
+ */
+final class PreparedBodyPart extends EncodedBodyPart {
+    /**
+     * 超过这个大小的文件不预先编码, 只确定头部, 内容在输出时编码
+     */
+    static final long MAX_ENCODED_FILE = 1024 * 1024;
+    private final byte[] encoded;
+
+    private PreparedBodyPart(byte[] encoded) {
+        this.encoded = encoded;
+    }
+
+    /**
+     * 检测类型和传输编码、编码文件名; 不超过 {@link #MAX_ENCODED_FILE} 的文件同时完成内容编码.
+     */
+    static BodyPart prepare(File file, String charset, String cid) throws MessagingException {
+        String contentType = FileTypeMap.getDefaultFileTypeMap().getContentType(file);
+        String name = file.getName();
+        try {
+            name = MimeUtility.encodeWord(name, charset, null);
+        } catch (UnsupportedEncodingException ignore) {
+        }
+        FileDataSource dataSource = new FileDataSource(file);
+        String encoding = MimeUtility.getEncoding(dataSource);
+        MimeBodyPart part;
+        if (file.length() <= MAX_ENCODED_FILE) {
+            try {
+                part = new PreparedBodyPart(encode(file, encoding));
+            } catch (IOException e) {
+                throw new MessagingException("Can not encode attachment: " + file.getAbsolutePath(), e);
+            }
+            part.setHeader("Content-Type", contentType(contentType, encoding));
+        } else {
+            part = new MimeBodyPart();
+            part.setDataHandler(new DataHandler(dataSource));
+        }
+        part.setFileName(name);
+        part.setHeader("Content-Transfer-Encoding", encoding);
+        if (cid != null) {
+            part.setHeader("Content-ID", cid);
+        }
+        return part;
+    }
+
+    /**
+     * 和 MimeBodyPart 一样, 文本类型补上 charset 参数
+     */
+    private static String contentType(String contentType, String encoding) throws MessagingException {
+        ContentType type = new ContentType(contentType);
+        if (type.match("text/*") && type.getParameter("charset") == null) {
+            String charset = System.getProperty("mail.mime.charset");//同 MimeUtility.getDefaultMIMECharset()
+            if (charset == null) {
+                charset = MimeUtility.mimeCharset(MimeUtility.getDefaultJavaCharset());
+            }
+            type.setParameter("charset", "7bit".equalsIgnoreCase(encoding) ? "us-ascii" : charset);
+        }
+        return type.toString();
+    }
+
+    private static byte[] encode(File file, String encoding) throws IOException, MessagingException {
+        byte[] raw = new byte[(int) file.length()];
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.readFully(raw);
+        } finally {
+            in.close();
+        }
+        if ("base64".equalsIgnoreCase(encoding)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) Base64Encoder.encodedLength(raw.length));
+            Base64Encoder.encode(ByteBuffer.wrap(raw), out, true);
+            return out.toByteArray();
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length + raw.length / 8 + 16);
+        OutputStream os = MimeUtility.encode(out, encoding);
+        os.write(raw);
+        os.flush();//和 MimeBodyPart 一样只 flush, 不 close
+        return out.toByteArray();
+    }
+
+    @Override
+    protected void writeContent(OutputStream os) throws IOException {
+        os.write(encoded);
+    }
+
+    @Override
+    protected InputStream getContentStream() {
+        return new ByteArrayInputStream(encoded);
+    }
+
+    @Override
+    long getEncodedSize() {
+        return encoded.length;
+    }
+}
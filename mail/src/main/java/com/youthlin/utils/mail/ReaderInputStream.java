@@ -0,0 +1,81 @@
+package com.youthlin.utils.mail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * 把 Reader 按指定字符集边读边编码为字节流, 只使用固定大小的缓冲区.
+ */
+final class ReaderInputStream extends InputStream {
+    private final Reader reader;
+    private final CharsetEncoder encoder;
+    private final CharBuffer chars = CharBuffer.allocate(4096);
+    private final ByteBuffer bytes;
+    private boolean endOfInput;
+    private boolean flushed;
+
+    ReaderInputStream(Reader reader, String charset) {
+        this.reader = reader;
+        this.encoder = Charset.forName(charset).newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.bytes = ByteBuffer.allocate((int) Math.ceil(chars.capacity() * encoder.maxBytesPerChar()));
+        chars.flip();
+        bytes.flip();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!bytes.hasRemaining() && !fill()) {
+            return -1;
+        }
+        return bytes.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!bytes.hasRemaining() && !fill()) {
+            return -1;
+        }
+        len = Math.min(len, bytes.remaining());
+        bytes.get(b, off, len);
+        return len;
+    }
+
+    private boolean fill() throws IOException {
+        bytes.clear();
+        while (bytes.position() == 0 && !flushed) {
+            if (!endOfInput) {
+                chars.compact();
+                int n = reader.read(chars);
+                chars.flip();
+                endOfInput = n < 0;
+            }
+            CoderResult result = encoder.encode(chars, bytes, endOfInput);
+            if (result.isError()) {
+                result.throwException();
+            }
+            if (endOfInput && result.isUnderflow()) {
+                encoder.flush(bytes);
+                flushed = true;
+            }
+        }
+        bytes.flip();
+        return bytes.hasRemaining();
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
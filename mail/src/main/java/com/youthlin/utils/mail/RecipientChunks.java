@@ -0,0 +1,68 @@
+package com.youthlin.utils.mail;
+
+import javax.mail.Address;
+import javax.mail.internet.InternetAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * 把信封收件人按域名分组后切分为批次.
+ * <p>
+ * 同一个域名的地址总是相邻, 中继可以把一批中同域名的收件人合并为一次投递;
+ * 小的域名会和相邻的域名共用一个批次, 大的域名会被拆为多个批次.
+ */
+final class RecipientChunks {
+    private RecipientChunks() {
+    }
+
+    /**
+     * @param recipients 收件人, 重复的地址(不区分大小写)只保留第一个
+     * @param chunkSize  每批最多的收件人数
+     * @return 批次列表
+     */
+    static List<Address[]> split(Address[] recipients, int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+        }
+        Map<String, List<Address>> byDomain = new TreeMap<String, List<Address>>();
+        Set<String> seen = new HashSet<String>();
+        for (Address recipient : recipients) {
+            String address = address(recipient);
+            String key = address.toLowerCase(Locale.ENGLISH);
+            if (!seen.add(key)) {
+                continue;
+            }
+            String domain = key.substring(key.lastIndexOf('@') + 1);
+            List<Address> list = byDomain.get(domain);
+            if (list == null) {
+                list = new ArrayList<Address>();
+                byDomain.put(domain, list);
+            }
+            list.add(recipient);
+        }
+        List<Address[]> chunks = new ArrayList<Address[]>(seen.size() / chunkSize + 1);
+        List<Address> chunk = new ArrayList<Address>(Math.min(chunkSize, seen.size()));
+        for (List<Address> list : byDomain.values()) {
+            for (Address address : list) {
+                chunk.add(address);
+                if (chunk.size() == chunkSize) {
+                    chunks.add(chunk.toArray(new Address[chunk.size()]));
+                    chunk.clear();
+                }
+            }
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk.toArray(new Address[chunk.size()]));
+        }
+        return chunks;
+    }
+
+    static String address(Address address) {
+        return address instanceof InternetAddress ? ((InternetAddress) address).getAddress() : address.toString();
+    }
+}
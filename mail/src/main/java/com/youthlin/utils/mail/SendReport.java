@@ -0,0 +1,103 @@
+package com.youthlin.utils.mail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 分批发送的结果: 每个收件人是否发送成功, 以及服务器的应答.
+ *
+ * @see MailSender#sendInChunks(int, int, java.util.concurrent.ExecutorService)
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class SendReport {
+    /**
+     * 收件人的发送状态
+     */
+    public enum Status {
+        /**
+         * 服务器已接受
+         */
+        SENT,
+        /**
+         * 服务器拒绝了这个地址(RCPT TO 失败)
+         */
+        REJECTED,
+        /**
+         * 地址没有被拒绝, 但所在批次没有发送成功(连接失败、邮件被拒绝等)
+         */
+        FAILED
+    }
+
+    private final Map<String, Status> statuses = new LinkedHashMap<String, Status>();
+    private final Map<String, String> messages = new LinkedHashMap<String, String>();
+
+    SendReport() {
+    }
+
+    void record(String address, Status status, String message) {
+        statuses.put(address, status);
+        messages.put(address, message);
+    }
+
+    void addAll(SendReport other) {
+        statuses.putAll(other.statuses);
+        messages.putAll(other.messages);
+    }
+
+    /**
+     * @return 收件人的状态, 不在这次发送中时返回 null
+     */
+    public Status getStatus(String address) {
+        return statuses.get(address);
+    }
+
+    /**
+     * @return 服务器对收件人所在批次或地址本身的应答, 没有应答时是异常信息
+     */
+    public String getMessage(String address) {
+        return messages.get(address);
+    }
+
+    public Map<String, Status> getStatuses() {
+        return Collections.unmodifiableMap(statuses);
+    }
+
+    public List<String> getSent() {
+        return filter(Status.SENT);
+    }
+
+    public List<String> getRejected() {
+        return filter(Status.REJECTED);
+    }
+
+    public List<String> getFailed() {
+        return filter(Status.FAILED);
+    }
+
+    public boolean isAllSent() {
+        return !statuses.containsValue(Status.REJECTED) && !statuses.containsValue(Status.FAILED);
+    }
+
+    public int size() {
+        return statuses.size();
+    }
+
+    private List<String> filter(Status status) {
+        List<String> list = new ArrayList<String>();
+        for (Map.Entry<String, Status> entry : statuses.entrySet()) {
+            if (entry.getValue() == status) {
+                list.add(entry.getKey());
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public String toString() {
+        return "SendReport{sent=" + getSent().size() + ", rejected=" + getRejected().size()
+                + ", failed=" + getFailed().size() + '}';
+    }
+}
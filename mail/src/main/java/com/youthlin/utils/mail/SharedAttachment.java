@@ -0,0 +1,463 @@
+package com.youthlin.utils.mail;
+
+import javax.activation.FileDataSource;
+import javax.activation.FileTypeMap;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeUtility;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 可以在多封邮件间共享的附件.
+ * <p>
+ * 文件只读取并编码(base64 / quoted-printable)一次, 编码后的字节保存在有界的缓存中,
+ * 之后引用它的邮件直接输出缓存的字节. 适合把同一个文件发给大量收件人:
+ * <pre>
+ * SharedAttachment pdf = SharedAttachment.of(new File("report.pdf"));
+ * for (String to : recipients) {
+ *     MailSender.newInstance(session).from("email").to(to).subject("subject").text("content")
+ *             .attachment(pdf)
+ *             .send();
+ * }
+ * </pre>
+ * 缓存以文件路径、修改时间和大小为键, 每次生成 BodyPart 时检查文件的当前状态, 文件被修改后之后的邮件会重新编码.
+ * 已经生成的 BodyPart 仍然使用生成时的内容.
+ * 编码结果可以放在堆内存({@link Storage#HEAP}), 也可以写入临时文件后内存映射({@link Storage#MAPPED}),
+ * 两种存储分别有总大小上限, 超出时淘汰最久未使用的.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class SharedAttachment {
+    private static final String UTF_8 = "UTF-8";
+    private static final Cache HEAP_CACHE = new Cache(64L * 1024 * 1024);
+    private static final Cache MAPPED_CACHE = new Cache(1024L * 1024 * 1024);
+    private final File file;
+    private final Storage storage;
+    /**
+     * 上一次使用的键, 文件被修改后用来把旧的编码结果移出缓存
+     */
+    private volatile Key key;
+    private final String contentType;
+    private final String fileName;//已编码的文件名
+
+    public enum Storage {
+        /**
+         * 编码结果保存在堆内存中
+         */
+        HEAP,
+        /**
+         * 编码结果写入临时文件并内存映射, 不占用堆内存
+         */
+        MAPPED
+    }
+
+    private SharedAttachment(File file, String charset, Storage storage) {
+        this.file = file;
+        this.storage = storage;
+        this.contentType = FileTypeMap.getDefaultFileTypeMap().getContentType(file);
+        String name = file.getName();
+        try {
+            name = MimeUtility.encodeWord(name, charset, null);
+        } catch (UnsupportedEncodingException ignore) {
+        }
+        this.fileName = name;
+    }
+
+    public static SharedAttachment of(File file) {
+        return of(file, UTF_8, Storage.HEAP);
+    }
+
+    public static SharedAttachment of(String pathToFile) {
+        return of(new File(pathToFile));
+    }
+
+    /**
+     * @param file    附件
+     * @param charset 文件名的编码
+     * @param storage 编码结果的存放位置
+     * @return 共享附件
+     */
+    public static SharedAttachment of(File file, String charset, Storage storage) {
+        if (!file.exists() || !file.isFile()) {
+            throw new IllegalArgumentException("File Not Found: " + file.getAbsolutePath());
+        }
+        return new SharedAttachment(file, charset, storage == null ? Storage.HEAP : storage);
+    }
+
+    /**
+     * 设置缓存的总大小上限(编码后的字节数).
+     *
+     * @param storage  哪一种存储
+     * @param maxBytes 上限, 默认堆内存 64M, 内存映射 1G
+     */
+    public static void setCacheLimit(Storage storage, long maxBytes) {
+        cache(storage).setLimit(maxBytes);
+    }
+
+    /**
+     * 清空缓存
+     */
+    public static void clearCache() {
+        HEAP_CACHE.clear();
+        MAPPED_CACHE.clear();
+    }
+
+    private static Cache cache(Storage storage) {
+        return storage == Storage.MAPPED ? MAPPED_CACHE : HEAP_CACHE;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * 生成一个引用缓存内容的 BodyPart, 每封邮件需要各自的 BodyPart
+     */
+    EncodedBodyPart toBodyPart(String cid) throws MessagingException {
+        final Encoded encoded = encoded();
+        EncodedBodyPart part = new EncodedBodyPart() {
+            @Override
+            protected void writeContent(OutputStream os) throws IOException {
+                encoded.writeTo(os);
+            }
+
+            @Override
+            protected InputStream getContentStream() {
+                return encoded.newInputStream();
+            }
+
+            @Override
+            long getEncodedSize() {
+                return encoded.size;
+            }
+        };
+        part.setHeader("Content-Type", contentType);
+        part.setFileName(fileName);
+        part.setHeader("Content-Transfer-Encoding", encoded.encoding);
+        if (cid != null) {
+            part.setHeader("Content-ID", cid);
+        }
+        return part;
+    }
+
+    /**
+     * 编码后的大小, 尚未编码时会先编码
+     */
+    public long getEncodedSize() throws MessagingException {
+        return encoded().size;
+    }
+
+    private Encoded encoded() throws MessagingException {
+        Key current = new Key(file);
+        Key last = key;
+        if (!current.equals(last)) {
+            key = current;
+            if (last != null) {
+                cache(storage).remove(last);
+            }
+        }
+        try {
+            return cache(storage).get(current, this);
+        } catch (IOException e) {
+            throw new MessagingException("Can not encode attachment: " + file.getAbsolutePath(), e);
+        }
+    }
+
+    private Encoded encode() throws IOException, MessagingException {
+        String encoding = MimeUtility.getEncoding(new FileDataSource(file));
+        if (storage == Storage.MAPPED) {
+            File temp = File.createTempFile("attachment", "." + encoding);
+            temp.deleteOnExit();
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+            try {
+                copyEncoded(encoding, out);
+            } finally {
+                out.close();
+            }
+            RandomAccessFile raf = new RandomAccessFile(temp, "r");
+            try {
+                MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                return new Encoded(encoding, buffer, temp);
+            } finally {
+                raf.close();//关闭后映射依然有效
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE - 8, file.length() * 4 / 3 + 1024));
+        copyEncoded(encoding, out);
+        return new Encoded(encoding, out.toByteArray());
+    }
+
+    private void copyEncoded(String encoding, OutputStream out) throws IOException, MessagingException {
+        OutputStream encoder = MimeUtility.encode(out, encoding);
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len = in.read(buf)) > 0) {
+                encoder.write(buf, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+        encoder.flush();
+    }
+
+    /**
+     * 编码后的内容, 可以被多个线程同时读取
+     */
+    private static final class Encoded {
+        private final String encoding;
+        private final long size;
+        private final byte[] bytes;
+        private final ByteBuffer buffer;
+        private final File temp;
+
+        private Encoded(String encoding, byte[] bytes) {
+            this.encoding = encoding;
+            this.size = bytes.length;
+            this.bytes = bytes;
+            this.buffer = null;
+            this.temp = null;
+        }
+
+        private Encoded(String encoding, ByteBuffer buffer, File temp) {
+            this.encoding = encoding;
+            this.size = buffer.remaining();
+            this.bytes = null;
+            this.buffer = buffer;
+            this.temp = temp;
+        }
+
+        void writeTo(OutputStream os) throws IOException {
+            if (bytes != null) {
+                os.write(bytes);
+                return;
+            }
+            ByteBuffer src = buffer.duplicate();
+            byte[] buf = new byte[8192];
+            while (src.hasRemaining()) {
+                int len = Math.min(buf.length, src.remaining());
+                src.get(buf, 0, len);
+                os.write(buf, 0, len);
+            }
+        }
+
+        InputStream newInputStream() {
+            if (bytes != null) {
+                return new ByteArrayInputStream(bytes);
+            }
+            final ByteBuffer src = buffer.duplicate();
+            return new InputStream() {
+                @Override
+                public int read() {
+                    return src.hasRemaining() ? src.get() & 0xFF : -1;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    if (!src.hasRemaining()) {
+                        return -1;
+                    }
+                    len = Math.min(len, src.remaining());
+                    src.get(b, off, len);
+                    return len;
+                }
+
+                @Override
+                public int available() {
+                    return src.remaining();
+                }
+            };
+        }
+
+        void release() {
+            if (temp != null && !temp.delete()) {
+                temp.deleteOnExit();
+            }
+        }
+    }
+
+    private static final class Key {
+        private final String path;
+        private final long lastModified;
+        private final long length;
+
+        private Key(File file) {
+            this.path = file.getAbsolutePath();
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return lastModified == key.lastModified && length == key.length && path.equals(key.path);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = path.hashCode();
+            result = 31 * result + (int) (lastModified ^ (lastModified >>> 32));
+            result = 31 * result + (int) (length ^ (length >>> 32));
+            return result;
+        }
+    }
+
+    /**
+     * 按编码后总字节数限制大小的 LRU 缓存. 同一个键只编码一次, 其他线程等待编码结果.
+     */
+    private static final class Cache {
+        private final Map<Key, Entry> map = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+        private final Lock lock = new ReentrantLock();
+        private long limit;
+        private long weight;
+
+        private Cache(long limit) {
+            this.limit = limit;
+        }
+
+        Encoded get(Key key, SharedAttachment attachment) throws IOException, MessagingException {
+            for (; ; ) {
+                Entry entry;
+                lock.lock();
+                try {
+                    entry = map.get(key);
+                    if (entry == null) {
+                        entry = new Entry();
+                        map.put(key, entry);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                Encoded encoded = entry.encoded;
+                if (encoded != null) {
+                    return encoded;
+                }
+                entry.lock.lock();//编码是文件 I/O, 用 ReentrantLock 等待, 虚拟线程不会钉住载体线程
+                try {
+                    if (entry.encoded != null) {
+                        return entry.encoded;
+                    }
+                    if (entry.failed) {
+                        continue;//等待的编码失败了, 条目已移除, 重新开始
+                    }
+                    boolean done = false;
+                    try {
+                        encoded = attachment.encode();
+                        done = true;
+                    } finally {
+                        if (!done) {
+                            entry.failed = true;
+                            remove(key, entry);
+                        }
+                    }
+                    entry.encoded = encoded;
+                    lock.lock();
+                    try {
+                        if (map.get(key) == entry) {
+                            weight += encoded.size;
+                            evict();
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                    return encoded;
+                } finally {
+                    entry.lock.unlock();
+                }
+            }
+        }
+
+        /**
+         * 移除已编码的条目; 正在编码的条目在编码完成后按正常流程计入
+         */
+        void remove(Key key) {
+            lock.lock();
+            try {
+                Entry entry = map.get(key);
+                if (entry != null && entry.encoded != null) {
+                    map.remove(key);
+                    weight -= entry.encoded.size;
+                    entry.encoded.release();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void remove(Key key, Entry entry) {
+            lock.lock();
+            try {
+                if (map.get(key) == entry) {
+                    map.remove(key);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void setLimit(long limit) {
+            lock.lock();
+            try {
+                this.limit = limit;
+                evict();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void clear() {
+            lock.lock();
+            try {
+                limit(0);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void limit(long max) {
+            Iterator<Entry> it = map.values().iterator();
+            while (weight > max && it.hasNext()) {
+                Entry entry = it.next();
+                Encoded encoded = entry.encoded;
+                if (encoded != null) {//正在编码的不淘汰
+                    it.remove();
+                    weight -= encoded.size;
+                    encoded.release();
+                }
+            }
+        }
+
+        private void evict() {
+            limit(limit);
+        }
+    }
+
+    private static final class Entry {
+        private final Lock lock = new ReentrantLock();
+        private volatile Encoded encoded;
+        private boolean failed;//只在持有 lock 时读写
+    }
+}
@@ -0,0 +1,91 @@
+package com.youthlin.utils.mail;
+
+import javax.activation.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 发送时才打开的邮件内容. 由 Reader 提供的内容按字符集边读边编码.
+ */
+final class StreamDataSource implements DataSource {
+    private final String contentType;
+    private final String charset;
+    private final ContentSupplier<? extends Reader> readerSupplier;
+    private final ContentSupplier<? extends InputStream> streamSupplier;
+    private Reader reader;//只能读一次
+    private InputStream stream;//只能读一次
+    private final Lock lock = new ReentrantLock();
+
+    private StreamDataSource(String contentType, String charset, ContentSupplier<? extends Reader> readerSupplier,
+                             ContentSupplier<? extends InputStream> streamSupplier) {
+        this.contentType = contentType;
+        this.charset = charset;
+        this.readerSupplier = readerSupplier;
+        this.streamSupplier = streamSupplier;
+    }
+
+    static StreamDataSource of(String contentType, String charset, ContentSupplier<? extends Reader> supplier) {
+        return new StreamDataSource(contentType, charset, supplier, null);
+    }
+
+    static StreamDataSource ofStream(String contentType, ContentSupplier<? extends InputStream> supplier) {
+        return new StreamDataSource(contentType, null, null, supplier);
+    }
+
+    static StreamDataSource of(String contentType, String charset, Reader reader) {
+        StreamDataSource dataSource = new StreamDataSource(contentType, charset, null, null);
+        dataSource.reader = reader;
+        return dataSource;
+    }
+
+    static StreamDataSource of(String contentType, InputStream stream) {
+        StreamDataSource dataSource = new StreamDataSource(contentType, null, null, null);
+        dataSource.stream = stream;
+        return dataSource;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (readerSupplier != null) {
+            return new ReaderInputStream(readerSupplier.get(), charset);
+        }
+        if (streamSupplier != null) {
+            return streamSupplier.get();
+        }
+        lock.lock();//supplier 可能打开文件或连接, 只在取走一次性的内容时加锁
+        try {
+            InputStream in;
+            if (reader != null) {
+                in = new ReaderInputStream(reader, charset);
+            } else if (stream != null) {
+                in = stream;
+            } else {
+                throw new IOException("Content already consumed. Use ContentSupplier if it needs to be read more than once.");
+            }
+            reader = null;
+            stream = null;
+            return in;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("Read only.");
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public String getName() {
+        return "body";
+    }
+}
@@ -0,0 +1,44 @@
+package com.youthlin.utils.mail;
+
+import net.markenwerk.utils.mail.dkim.DkimAcceptanceException;
+import net.markenwerk.utils.mail.dkim.DkimMessage;
+import net.markenwerk.utils.mail.dkim.DkimSigner;
+import net.markenwerk.utils.mail.dkim.DkimSigningException;
+
+import java.security.interfaces.RSAPrivateKey;
+
+/**
+ * 记录签名耗时的签名器. 签名发生在邮件写出时, 耗时累加到当前线程, 由发送方通过 {@link #take()} 取走.
+ */
+final class TimedDkimSigner extends DkimSigner {
+    private static final ThreadLocal<long[]> ELAPSED = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    TimedDkimSigner(String signingDomain, String selector, RSAPrivateKey privkey) {
+        super(signingDomain, selector, privkey);
+    }
+
+    @Override
+    protected String sign(DkimMessage message) throws DkimAcceptanceException, DkimSigningException {
+        long start = System.nanoTime();
+        try {
+            return super.sign(message);
+        } finally {
+            ELAPSED.get()[0] += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * @return 当前线程上次取走之后签名所用的纳秒数, 并清零
+     */
+    static long take() {
+        long[] elapsed = ELAPSED.get();
+        long nanos = elapsed[0];
+        elapsed[0] = 0;
+        return nanos;
+    }
+}
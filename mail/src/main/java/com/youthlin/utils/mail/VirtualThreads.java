@@ -0,0 +1,101 @@
+package com.youthlin.utils.mail;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 虚拟线程(JDK 21+). 通过反射调用, 编译和运行在旧版本 JDK 上时退回平台线程.
+ * <p>
+ * 在虚拟线程中大量并发发信时请使用 {@link MailSender#sendAndWait(com.youthlin.utils.mail.nio.SmtpEngine)}:
+ * javax.mail 的 Transport 在 synchronized 方法中读写 socket, 虚拟线程阻塞时会钉住载体线程;
+ * 而 SmtpEngine 的 I/O 在事件循环线程中完成, 发信线程只在 AQS(不是监视器锁)上等待结果.
+ * <pre>
+ * ExecutorService executor = VirtualThreads.newExecutor();
+ * for (final String to : recipients) {
+ *     executor.submit(new Callable&lt;SmtpResult&gt;() {
+ *         public SmtpResult call() throws Exception {
+ *             return MailSender.newInstance(session).from("from").to(to).text("text").sendAndWait(engine);
+ *         }
+ *     });
+ * }
+ * </pre>
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class VirtualThreads {
+    private static final Method NEW_EXECUTOR;
+    private static final Method OF_VIRTUAL;
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_START;
+
+    static {
+        Method newExecutor = null;
+        Method ofVirtual = null;
+        Method name = null;
+        Method start = null;
+        try {
+            newExecutor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");//通过公开的接口调用, 实现类不可访问
+            name = builder.getMethod("name", String.class);
+            start = builder.getMethod("start", Runnable.class);
+        } catch (Exception e) {
+            newExecutor = null;
+        }
+        NEW_EXECUTOR = newExecutor;
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = name;
+        BUILDER_START = start;
+    }
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return 当前 JDK 是否支持虚拟线程
+     */
+    public static boolean isSupported() {
+        return NEW_EXECUTOR != null;
+    }
+
+    /**
+     * @return 每个任务一个虚拟线程的线程池; 不支持时返回 {@link Executors#newCachedThreadPool()}
+     */
+    public static ExecutorService newExecutor() {
+        if (NEW_EXECUTOR != null) {
+            return (ExecutorService) invoke(NEW_EXECUTOR, null);
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    /**
+     * 启动一个虚拟线程; 不支持时启动平台线程
+     */
+    public static Thread start(String name, Runnable task) {
+        if (OF_VIRTUAL != null) {
+            Object builder = invoke(BUILDER_NAME, invoke(OF_VIRTUAL, null), name);
+            return (Thread) invoke(BUILDER_START, builder, task);
+        }
+        Thread thread = new Thread(task, name);
+        thread.start();
+        return thread;
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) {
+        try {
+            return method.invoke(target, args);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+}
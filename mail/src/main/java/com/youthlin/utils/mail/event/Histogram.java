@@ -0,0 +1,62 @@
+package com.youthlin.utils.mail.event;
+
+/**
+ * 按 2 的幂分桶的分布, 桶 b 记录 [2^(b-1), 2^b) 范围内的值. 分位数在所在的桶内线性插值, 误差在 2 倍以内.
+ */
+final class Histogram {
+    private static final int BUCKETS = 65;
+    private static final int COUNT = BUCKETS;
+    private static final int SUM = BUCKETS + 1;
+    private final Striped cells = new Striped(BUCKETS + 2);
+
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        cells.add(64 - Long.numberOfLeadingZeros(value), 1);
+        cells.add(COUNT, 1);
+        cells.add(SUM, value);
+    }
+
+    long count() {
+        return cells.sum(COUNT);
+    }
+
+    double mean() {
+        long count = count();
+        return count == 0 ? 0 : (double) cells.sum(SUM) / count;
+    }
+
+    /**
+     * @param percentile 0~100
+     */
+    long percentile(double percentile) {
+        long[] buckets = new long[BUCKETS];
+        long count = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            buckets[b] = cells.sum(b);
+            count += buckets[b];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100 * count);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            if (seen + buckets[b] >= rank && buckets[b] > 0) {
+                if (b >= 63) {
+                    return Long.MAX_VALUE;
+                }
+                long lower = b == 0 ? 0 : 1L << (b - 1);
+                long upper = (1L << b) - 1;
+                return lower + (long) ((double) (upper - lower) * (rank - seen) / buckets[b]);//桶内线性插值
+            }
+            seen += buckets[b];
+        }
+        return Long.MAX_VALUE;
+    }
+
+    void reset() {
+        cells.reset();
+    }
+}
@@ -0,0 +1,219 @@
+package com.youthlin.utils.mail.event;
+
+import java.util.Arrays;
+
+/**
+ * 一次发送的详细信息. 时间单位都是纳秒, 没有经历的阶段为 0.
+ * <p>
+ * 复用已有连接发送时, 连接、TLS、认证的耗时都是 0.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class SendEvent {
+    private final String server;
+    private final boolean success;
+    private final Throwable error;
+    private final boolean reused;
+    private final int recipients;
+    private final long bytes;
+    private final long connectNanos;
+    private final long tlsNanos;
+    private final long authNanos;
+    private final long dataNanos;
+    private final long dkimNanos;
+    private final long totalNanos;
+    private final int[] replyCodes;
+
+    private SendEvent(Builder builder, boolean success) {
+        this.server = builder.server;
+        this.success = success;
+        this.error = builder.error;
+        this.reused = builder.reused;
+        this.recipients = builder.recipients;
+        this.bytes = builder.bytes;
+        this.connectNanos = builder.connectNanos;
+        this.tlsNanos = builder.tlsNanos;
+        this.authNanos = builder.authNanos;
+        this.dataNanos = builder.dataNanos;
+        this.dkimNanos = builder.dkimNanos;
+        this.totalNanos = builder.totalNanos;
+        this.replyCodes = Arrays.copyOf(builder.replyCodes, builder.replyCount);
+    }
+
+    /**
+     * 由发送方(Transport, SmtpEngine)使用
+     *
+     * @param server 服务器, host:port
+     */
+    public static Builder newBuilder(String server) {
+        return new Builder(server);
+    }
+
+    public String getServer() {
+        return server;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    /**
+     * @return 失败的原因, 成功时为 null
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    /**
+     * @return 是否复用了之前建立的连接
+     */
+    public boolean isReused() {
+        return reused;
+    }
+
+    public int getRecipients() {
+        return recipients;
+    }
+
+    /**
+     * @return DATA 阶段写出的字节数
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return 建立 TCP 连接(含 DNS 解析)到收到服务器问候的耗时
+     */
+    public long getConnectNanos() {
+        return connectNanos;
+    }
+
+    /**
+     * @return STARTTLS 或 SMTPS 的 TLS 握手耗时
+     */
+    public long getTlsNanos() {
+        return tlsNanos;
+    }
+
+    public long getAuthNanos() {
+        return authNanos;
+    }
+
+    /**
+     * @return MAIL FROM 到服务器确认收到邮件的耗时, 不含 DKIM 签名
+     */
+    public long getDataNanos() {
+        return dataNanos;
+    }
+
+    /**
+     * @return DKIM 签名耗时
+     */
+    public long getDkimNanos() {
+        return dkimNanos;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * @return 本次发送收到的全部应答码, 按顺序
+     */
+    public int[] getReplyCodes() {
+        return replyCodes.clone();
+    }
+
+    @Override
+    public String toString() {
+        return "SendEvent{server=" + server + ", success=" + success + ", reused=" + reused
+                + ", bytes=" + bytes + ", connect=" + connectNanos / 1000 + "us, tls=" + tlsNanos / 1000
+                + "us, auth=" + authNanos / 1000 + "us, data=" + dataNanos / 1000 + "us, dkim=" + dkimNanos / 1000
+                + "us, total=" + totalNanos / 1000 + "us, replies=" + Arrays.toString(replyCodes) + '}';
+    }
+
+    /**
+     * SendEvent 构造器, 不是线程安全的
+     */
+    public static final class Builder {
+        private final String server;
+        private Throwable error;
+        private boolean reused;
+        private int recipients;
+        private long bytes;
+        private long connectNanos;
+        private long tlsNanos;
+        private long authNanos;
+        private long dataNanos;
+        private long dkimNanos;
+        private long totalNanos;
+        private int[] replyCodes = new int[8];
+        private int replyCount;
+
+        private Builder(String server) {
+            this.server = server;
+        }
+
+        public Builder error(Throwable error) {
+            this.error = error;
+            return this;
+        }
+
+        public Builder reused(boolean reused) {
+            this.reused = reused;
+            return this;
+        }
+
+        public Builder recipients(int recipients) {
+            this.recipients = recipients;
+            return this;
+        }
+
+        public Builder bytes(long bytes) {
+            this.bytes = bytes;
+            return this;
+        }
+
+        public Builder connect(long nanos) {
+            this.connectNanos = nanos;
+            return this;
+        }
+
+        public Builder tls(long nanos) {
+            this.tlsNanos = nanos;
+            return this;
+        }
+
+        public Builder auth(long nanos) {
+            this.authNanos = nanos;
+            return this;
+        }
+
+        public Builder data(long nanos) {
+            this.dataNanos = nanos;
+            return this;
+        }
+
+        public Builder dkim(long nanos) {
+            this.dkimNanos = nanos;
+            return this;
+        }
+
+        public Builder total(long nanos) {
+            this.totalNanos = nanos;
+            return this;
+        }
+
+        public Builder replyCode(int code) {
+            if (replyCount == replyCodes.length) {
+                replyCodes = Arrays.copyOf(replyCodes, replyCount * 2);
+            }
+            replyCodes[replyCount++] = code;
+            return this;
+        }
+
+        public SendEvent build(boolean success) {
+            return new SendEvent(this, success);
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.youthlin.utils.mail.event;
+
+/**
+ * 发信监听器. 在发送线程(或 SmtpEngine 的事件循环线程)中同步调用, 不要做耗时的操作.
+ *
+ * @see SendListeners#add(SendListener)
+ */
+public interface SendListener {
+    void onSend(SendEvent event);
+}
@@ -0,0 +1,40 @@
+package com.youthlin.utils.mail.event;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 全局的发信监听器列表. 没有注册监听器时, 发送过程不做任何统计.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class SendListeners {
+    private static final CopyOnWriteArrayList<SendListener> LISTENERS = new CopyOnWriteArrayList<SendListener>();
+
+    private SendListeners() {
+    }
+
+    public static void add(SendListener listener) {
+        LISTENERS.addIfAbsent(listener);
+    }
+
+    public static void remove(SendListener listener) {
+        LISTENERS.remove(listener);
+    }
+
+    public static boolean isEmpty() {
+        return LISTENERS.isEmpty();
+    }
+
+    /**
+     * 通知所有监听器. 监听器抛出的异常不会影响发送.
+     */
+    public static void publish(SendEvent event) {
+        for (SendListener listener : LISTENERS) {
+            try {
+                listener.onSend(event);
+            } catch (RuntimeException e) {
+                Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+            }
+        }
+    }
+}
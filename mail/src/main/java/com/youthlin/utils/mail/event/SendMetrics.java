@@ -0,0 +1,217 @@
+package com.youthlin.utils.mail.event;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * 汇总发信事件: 计数和各阶段耗时的分布. 多线程更新时使用分段计数, 不加锁.
+ * <pre>
+ * SendMetrics metrics = SendMetrics.install();   // 注册监听器并导出到 JMX
+ * ...
+ * metrics.getTotalP99Micros();
+ * </pre>
+ * JMX 名称默认为 {@value #OBJECT_NAME}.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class SendMetrics implements SendListener, SendMetricsMBean {
+    public static final String OBJECT_NAME = "com.youthlin.utils.mail:type=SendMetrics";
+    private static final int SENDS = 0;
+    private static final int FAILURES = 1;
+    private static final int REUSED = 2;
+    private static final int BYTES = 3;
+    private static final int RECIPIENTS = 4;
+    private static final int REPLY = 5;//REPLY + 应答码的第一位
+    private final Striped counters = new Striped(REPLY + 6);
+    private final Histogram connect = new Histogram();
+    private final Histogram tls = new Histogram();
+    private final Histogram auth = new Histogram();
+    private final Histogram data = new Histogram();
+    private final Histogram dkim = new Histogram();
+    private final Histogram total = new Histogram();
+
+    /**
+     * 创建、注册为监听器并以默认名称导出到 JMX
+     */
+    public static SendMetrics install() throws JMException {
+        SendMetrics metrics = new SendMetrics();
+        metrics.register(OBJECT_NAME);
+        SendListeners.add(metrics);
+        return metrics;
+    }
+
+    /**
+     * 导出到平台 MBeanServer, 已有同名的 MBean 时先注销
+     */
+    public void register(String objectName) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(objectName);
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(this, name);
+    }
+
+    @Override
+    public void onSend(SendEvent event) {
+        counters.add(SENDS, 1);
+        if (!event.isSuccess()) {
+            counters.add(FAILURES, 1);
+        }
+        if (event.isReused()) {
+            counters.add(REUSED, 1);
+        }
+        counters.add(BYTES, event.getBytes());
+        counters.add(RECIPIENTS, event.getRecipients());
+        for (int code : event.getReplyCodes()) {
+            int type = code / 100;
+            if (type >= 1 && type <= 5) {
+                counters.add(REPLY + type, 1);
+            }
+        }
+        if (!event.isReused()) {
+            record(connect, event.getConnectNanos());
+            record(tls, event.getTlsNanos());
+            record(auth, event.getAuthNanos());
+        }
+        record(data, event.getDataNanos());
+        record(dkim, event.getDkimNanos());
+        total.record(event.getTotalNanos());
+    }
+
+    /**
+     * 没有经历的阶段(耗时为 0)不计入分布
+     */
+    private static void record(Histogram histogram, long nanos) {
+        if (nanos > 0) {
+            histogram.record(nanos);
+        }
+    }
+
+    @Override
+    public long getSendCount() {
+        return counters.sum(SENDS);
+    }
+
+    @Override
+    public long getFailureCount() {
+        return counters.sum(FAILURES);
+    }
+
+    @Override
+    public long getReusedConnectionCount() {
+        return counters.sum(REUSED);
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return counters.sum(BYTES);
+    }
+
+    @Override
+    public long getRecipientCount() {
+        return counters.sum(RECIPIENTS);
+    }
+
+    @Override
+    public long getReply2xxCount() {
+        return counters.sum(REPLY + 2);
+    }
+
+    @Override
+    public long getReply4xxCount() {
+        return counters.sum(REPLY + 4);
+    }
+
+    @Override
+    public long getReply5xxCount() {
+        return counters.sum(REPLY + 5);
+    }
+
+    @Override
+    public double getConnectMeanMicros() {
+        return connect.mean() / 1000;
+    }
+
+    @Override
+    public long getConnectP99Micros() {
+        return connect.percentile(99) / 1000;
+    }
+
+    @Override
+    public double getTlsMeanMicros() {
+        return tls.mean() / 1000;
+    }
+
+    @Override
+    public long getTlsP99Micros() {
+        return tls.percentile(99) / 1000;
+    }
+
+    @Override
+    public double getAuthMeanMicros() {
+        return auth.mean() / 1000;
+    }
+
+    @Override
+    public long getAuthP99Micros() {
+        return auth.percentile(99) / 1000;
+    }
+
+    @Override
+    public double getDataMeanMicros() {
+        return data.mean() / 1000;
+    }
+
+    @Override
+    public long getDataP99Micros() {
+        return data.percentile(99) / 1000;
+    }
+
+    @Override
+    public double getDkimMeanMicros() {
+        return dkim.mean() / 1000;
+    }
+
+    @Override
+    public long getDkimP99Micros() {
+        return dkim.percentile(99) / 1000;
+    }
+
+    @Override
+    public double getTotalMeanMicros() {
+        return total.mean() / 1000;
+    }
+
+    @Override
+    public long getTotalP50Micros() {
+        return total.percentile(50) / 1000;
+    }
+
+    @Override
+    public long getTotalP99Micros() {
+        return total.percentile(99) / 1000;
+    }
+
+    @Override
+    public void reset() {
+        counters.reset();
+        connect.reset();
+        tls.reset();
+        auth.reset();
+        data.reset();
+        dkim.reset();
+        total.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "SendMetrics{sends=" + getSendCount() + ", failures=" + getFailureCount()
+                + ", reused=" + getReusedConnectionCount() + ", bytes=" + getBytesWritten()
+                + ", connect=" + (long) getConnectMeanMicros() + "us, tls=" + (long) getTlsMeanMicros()
+                + "us, auth=" + (long) getAuthMeanMicros() + "us, data=" + (long) getDataMeanMicros()
+                + "us, dkim=" + (long) getDkimMeanMicros() + "us, total p50=" + getTotalP50Micros()
+                + "us p99=" + getTotalP99Micros() + "us}";
+    }
+}
@@ -0,0 +1,51 @@
+package com.youthlin.utils.mail.event;
+
+/**
+ * {@link SendMetrics} 的 JMX 接口. 耗时的单位是微秒, 分位数是近似值(误差在 2 倍以内).
+ */
+@SuppressWarnings("unused")
+public interface SendMetricsMBean {
+    long getSendCount();
+
+    long getFailureCount();
+
+    long getReusedConnectionCount();
+
+    long getBytesWritten();
+
+    long getRecipientCount();
+
+    long getReply2xxCount();
+
+    long getReply4xxCount();
+
+    long getReply5xxCount();
+
+    double getConnectMeanMicros();
+
+    long getConnectP99Micros();
+
+    double getTlsMeanMicros();
+
+    long getTlsP99Micros();
+
+    double getAuthMeanMicros();
+
+    long getAuthP99Micros();
+
+    double getDataMeanMicros();
+
+    long getDataP99Micros();
+
+    double getDkimMeanMicros();
+
+    long getDkimP99Micros();
+
+    double getTotalMeanMicros();
+
+    long getTotalP50Micros();
+
+    long getTotalP99Micros();
+
+    void reset();
+}
@@ -0,0 +1,48 @@
+package com.youthlin.utils.mail.event;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 分段计数器: 每个线程按线程 ID 落到不同的段, 减少多线程同时更新同一个缓存行的竞争, 读取时把各段相加.
+ */
+final class Striped {
+    private static final int LONGS_PER_LINE = 8;//64 字节缓存行
+    private final int mask;
+    private final int width;
+    private final AtomicLongArray cells;
+
+    /**
+     * @param slots 每段的计数器个数
+     */
+    Striped(int slots) {
+        int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1) << 1);
+        this.mask = stripes - 1;
+        //每段后面空出一整行, 第一段前面也空出一行; 数组起始地址不一定按缓存行对齐, 相邻两段之间至少隔 64 字节才不会落在同一行
+        this.width = (slots + LONGS_PER_LINE - 1) / LONGS_PER_LINE * LONGS_PER_LINE + LONGS_PER_LINE;
+        this.cells = new AtomicLongArray(LONGS_PER_LINE + stripes * width);
+    }
+
+    void add(int slot, long delta) {
+        long id = Thread.currentThread().getId();
+        int stripe = (int) ((id * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+        cells.addAndGet(index(stripe, slot), delta);
+    }
+
+    long sum(int slot) {
+        long sum = 0;
+        for (int stripe = 0; stripe <= mask; stripe++) {
+            sum += cells.get(index(stripe, slot));
+        }
+        return sum;
+    }
+
+    private int index(int stripe, int slot) {
+        return LONGS_PER_LINE + stripe * width + slot;
+    }
+
+    void reset() {
+        for (int i = 0; i < cells.length(); i++) {
+            cells.set(i, 0);
+        }
+    }
+}
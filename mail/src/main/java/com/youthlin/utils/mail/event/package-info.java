@@ -0,0 +1,9 @@
+/**
+ * 发信过程的监听和统计.
+ * <p>
+ * 注册 {@link com.youthlin.utils.mail.event.SendListener} 后, MailSender / MailTemplate / MailPayload
+ * 经 javax.mail 发送的邮件和 SmtpEngine 发送的邮件, 每发送一次都会收到一个
+ * {@link com.youthlin.utils.mail.event.SendEvent}, 其中有连接、TLS、认证、DATA、DKIM 签名各阶段的耗时.
+ * {@link com.youthlin.utils.mail.event.SendMetrics} 把这些事件汇总为计数和分布, 并通过 JMX 导出.
+ */
+package com.youthlin.utils.mail.event;
@@ -0,0 +1,201 @@
+package com.youthlin.utils.mail.nio;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 事件循环: 一个线程用一个 Selector 驱动多个 SMTP 连接.
+ * <p>
+ * 其他线程只通过 {@link #signal()} 和 {@link #execute(Runnable)} 与它交互.
+ */
+final class EventLoop implements Runnable {
+    private static final long SELECT_TIMEOUT = 500;
+    private final SmtpEngine engine;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final ArrayDeque<SmtpConnection> idle = new ArrayDeque<SmtpConnection>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final AtomicBoolean signaled = new AtomicBoolean();
+    private final Runnable dispatchTask = new Runnable() {
+        @Override
+        public void run() {
+            signaled.set(false);
+            dispatch();
+        }
+    };
+    private volatile boolean running = true;
+
+    EventLoop(SmtpEngine engine) throws IOException {
+        this.engine = engine;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * 有新邮件排队, 让事件循环分配给空闲连接或建立新连接
+     */
+    void signal() {
+        if (signaled.compareAndSet(false, true)) {
+            execute(dispatchTask);
+        }
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * @return 空闲连接数, 其他线程读取时只是一个近似值
+     */
+    int idleCount() {
+        return idleCount.get();
+    }
+
+    /**
+     * 关闭没有启动的事件循环
+     */
+    void close() {
+        try {
+            selector.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select(SELECT_TIMEOUT);
+                runTasks();
+                processKeys();
+                long now = System.currentTimeMillis();
+                for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+                    ((SmtpConnection) key.attachment()).checkTimeout(now);
+                }
+            }
+        } catch (Throwable e) {
+            closeAll(e);
+            return;
+        }
+        closeAll(new SmtpException("Engine closed."));
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void processKeys() {
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            SmtpConnection connection = (SmtpConnection) key.attachment();
+            try {
+                if (key.isValid() && key.isConnectable()) {
+                    connection.onConnectable();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    connection.onReadable();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.onWritable();
+                }
+            } catch (CancelledKeyException ignore) {
+                //连接已经关闭
+            } catch (Exception e) {
+                connection.close(e);
+            }
+        }
+    }
+
+    /**
+     * 把排队的邮件分配给空闲连接, 还有剩余时建立新连接(不超过引擎的连接数上限)
+     */
+    void dispatch() {
+        if (!running) {
+            return;
+        }
+        while (engine.pendingCount() > 0) {
+            SmtpConnection connection = idle.poll();
+            if (connection == null) {
+                break;
+            }
+            idleCount.decrementAndGet();
+            connection.next();
+        }
+        while (engine.pendingCount() > engine.connectingCount() && engine.acquireConnection()) {
+            open();
+        }
+    }
+
+    void idle(SmtpConnection connection) {
+        idle.add(connection);
+        idleCount.incrementAndGet();
+    }
+
+    void removeIdle(SmtpConnection connection) {
+        if (idle.remove(connection)) {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    private void open() {
+        SocketChannel channel = null;
+        SmtpConnection connection = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            connection = new SmtpConnection(engine, this, channel);
+            boolean connected = channel.connect(engine.address);
+            connection.register(channel.register(selector, connected ? 0 : SelectionKey.OP_CONNECT, connection));
+            if (connected) {
+                connection.connected();
+            }
+        } catch (IOException e) {
+            if (connection != null) {
+                connection.close(e);
+                return;
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignore) {
+                }
+            }
+            engine.closed(false, e);
+        }
+    }
+
+    private void closeAll(Throwable cause) {
+        running = false;
+        List<SelectionKey> keys = new ArrayList<SelectionKey>(selector.keys());
+        for (SelectionKey key : keys) {
+            ((SmtpConnection) key.attachment()).close(cause);
+        }
+        runTasks();
+        try {
+            selector.close();
+        } catch (IOException ignore) {
+        }
+    }
+}
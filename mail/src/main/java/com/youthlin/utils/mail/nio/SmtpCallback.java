@@ -0,0 +1,16 @@
+package com.youthlin.utils.mail.nio;
+
+/**
+ * 发送完成时的回调, 在事件循环线程中执行, 不要在回调中做耗时的操作.
+ */
+public interface SmtpCallback {
+    /**
+     * 服务器已经应答(接受或拒绝)
+     */
+    void onComplete(SmtpResult result);
+
+    /**
+     * 连接、TLS、认证等出错, 没有得到服务器对这封邮件的应答
+     */
+    void onFailure(Throwable cause);
+}
@@ -0,0 +1,689 @@
+package com.youthlin.utils.mail.nio;
+
+import com.sun.mail.util.BASE64EncoderStream;
+import com.youthlin.utils.mail.event.SendEvent;
+import com.youthlin.utils.mail.event.SendListeners;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 一个 SMTP 连接的状态机, 所有方法都只在所属的事件循环线程中调用.
+ * <p>
+ * 每发出一条命令就把期待的应答类型放进队列, 收到应答时按顺序取出处理,
+ * 所以服务器支持 PIPELINING 时可以一次写出 MAIL/RCPT/DATA 再依次处理应答.
+ */
+final class SmtpConnection {
+    private static final int MAX_LINE = 64 * 1024;
+    private static final int GATHER = 64;
+
+    private enum Step {GREETING, EHLO, HELO, STARTTLS, AUTH, AUTH_USER, AUTH_PASS, MAIL, RCPT, DATA, END_DATA, RSET, QUIT}
+
+    private enum State {CONNECTING, SETUP, READY, BUSY, CLOSING, CLOSED}
+
+    private final SmtpEngine engine;
+    private final EventLoop loop;
+    private final SocketChannel channel;
+    private SelectionKey key;
+    private TlsLayer tls;
+    private ByteBuffer in = ByteBuffer.allocate(8192);//写模式
+    private final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+    private final ByteBuffer[] gather = new ByteBuffer[GATHER];
+    private final ArrayDeque<Step> expected = new ArrayDeque<Step>();
+    private final ArrayDeque<String[]> waiting = new ArrayDeque<String[]>();//不支持 PIPELINING 时还没发出的命令
+    private final Map<String, String> extensions = new HashMap<String, String>();
+    private final List<String> lines = new ArrayList<String>();//当前应答已经收到的行
+    private State state = State.CONNECTING;
+    private boolean setupDone;
+    private boolean tlsTried;
+    private boolean discardInput;
+    private long deadline;
+    private int delivered;
+    private int started;
+    //耗时统计
+    private final long created = System.nanoTime();
+    private long connectNanos;
+    private long tlsStart;
+    private long tlsNanos;
+    private long authStart;
+    private long authNanos;
+    private long setupNanos;
+    private long jobStart;
+    private int[] codes;
+    private int codeCount;
+    //当前邮件
+    private SmtpJob job;
+    private int rcptIndex;
+    private Map<String, Integer> rcptCodes;
+    private int failCode;
+    private String failReply;
+    private boolean replied;
+    private boolean aborted;
+
+    SmtpConnection(SmtpEngine engine, EventLoop loop, SocketChannel channel) {
+        this.engine = engine;
+        this.loop = loop;
+        this.channel = channel;
+        this.deadline = System.currentTimeMillis() + engine.timeout;
+    }
+
+    void register(SelectionKey key) {
+        this.key = key;
+    }
+
+    //region //事件
+
+    void onConnectable() throws IOException {
+        if (!channel.finishConnect()) {
+            return;
+        }
+        connected();
+    }
+
+    void connected() throws IOException {
+        state = State.SETUP;
+        touch();
+        expected.add(Step.GREETING);
+        if (engine.ssl) {
+            startTls();
+        }
+        flushOut();
+    }
+
+    void onReadable() throws IOException, SmtpException {
+        while (state != State.CLOSED) {
+            int n;
+            if (tls != null) {
+                if (in.remaining() < tls.applicationBufferSize()) {//解密至少需要一个记录大小的空间
+                    ByteBuffer bigger = ByteBuffer.allocate(in.position() + tls.applicationBufferSize());
+                    in.flip();
+                    bigger.put(in);
+                    in = bigger;
+                }
+                n = tls.read(in);
+            } else {
+                n = channel.read(in);
+            }
+            if (n < 0) {
+                if (state == State.CLOSING) {
+                    close(null);
+                } else {
+                    close(new SmtpException("Connection closed by server."));
+                }
+                return;
+            }
+            if (n == 0) {
+                break;
+            }
+            touch();
+            parse();
+        }
+        if (state != State.CLOSED) {
+            flushOut();
+        }
+    }
+
+    void onWritable() throws IOException, SmtpException {
+        touch();
+        flushOut();
+        if (tls != null && tls.hasBufferedInput()) {
+            onReadable();//握手时因为写不动而暂停的解密
+        }
+    }
+
+    void checkTimeout(long now) {
+        if (deadline <= 0 || now < deadline || state == State.CLOSED) {
+            return;
+        }
+        if (state == State.READY) {
+            quit();
+        } else if (state == State.CLOSING) {
+            close(null);
+        } else {
+            close(new SmtpException("Timeout, state: " + state));
+        }
+    }
+
+    //endregion //事件
+
+    //region //应答
+
+    private void parse() throws IOException, SmtpException {
+        in.flip();
+        int start = in.position();
+        for (int i = start; i < in.limit(); i++) {
+            if (in.get(i) != '\n') {
+                continue;
+            }
+            int end = i > start && in.get(i - 1) == '\r' ? i - 1 : i;
+            byte[] bytes = new byte[end - start];
+            in.position(start);
+            in.get(bytes);
+            start = i + 1;
+            line(new String(bytes, "ISO-8859-1"));
+            if (state == State.CLOSED) {
+                return;
+            }
+            if (discardInput) {//STARTTLS 之前缓冲的明文不可信, 丢弃
+                discardInput = false;
+                in.clear();
+                return;
+            }
+        }
+        in.position(start);
+        in.compact();
+        if (!in.hasRemaining()) {
+            if (in.capacity() >= MAX_LINE) {
+                throw new SmtpException("Reply line too long.");
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+            in.flip();
+            bigger.put(in);
+            in = bigger;
+        }
+    }
+
+    private void line(String line) throws IOException, SmtpException {
+        if (line.length() < 3) {
+            throw new SmtpException("Bad reply: " + line);
+        }
+        int code;
+        try {
+            code = Integer.parseInt(line.substring(0, 3));
+        } catch (NumberFormatException e) {
+            throw new SmtpException("Bad reply: " + line);
+        }
+        lines.add(line.length() > 4 ? line.substring(4) : "");
+        if (line.length() > 3 && line.charAt(3) == '-') {
+            return;//多行应答
+        }
+        List<String> reply = new ArrayList<String>(lines);
+        lines.clear();
+        if (job != null && codes != null) {
+            if (codeCount == codes.length) {
+                codes = Arrays.copyOf(codes, codeCount * 2);
+            }
+            codes[codeCount++] = code;
+        }
+        Step step = expected.poll();
+        if (step == null) {
+            throw new SmtpException("Unexpected reply: " + line, code);
+        }
+        reply(step, code, reply);
+    }
+
+    private void reply(Step step, int code, List<String> reply) throws IOException, SmtpException {
+        switch (step) {
+            case GREETING:
+                connectNanos = System.nanoTime() - created;
+                if (code != 220) {
+                    throw new SmtpException("Bad greeting: " + text(code, reply), code);
+                }
+                command(Step.EHLO, "EHLO " + engine.localHost);
+                break;
+            case EHLO:
+                if (tlsStart > 0 && tlsNanos == 0) {
+                    tlsNanos = System.nanoTime() - tlsStart;
+                }
+                if (code != 250) {
+                    command(Step.HELO, "HELO " + engine.localHost);
+                    break;
+                }
+                extensions.clear();
+                for (int i = 1; i < reply.size(); i++) {//第一行是服务器名
+                    String ext = reply.get(i).trim();
+                    int sp = ext.indexOf(' ');
+                    int eq = ext.indexOf('=');//旧格式 AUTH=LOGIN PLAIN
+                    int sep = sp < 0 ? eq : eq < 0 ? sp : Math.min(sp, eq);
+                    String name = (sep < 0 ? ext : ext.substring(0, sep)).toUpperCase(Locale.ENGLISH);
+                    String value = sep < 0 ? "" : ext.substring(sep + 1).trim();
+                    String old = extensions.get(name);
+                    extensions.put(name, old == null || old.length() == 0 ? value : old + ' ' + value);
+                }
+                hello();
+                break;
+            case HELO:
+                if (code != 250) {
+                    throw new SmtpException("HELO failed: " + text(code, reply), code);
+                }
+                extensions.clear();
+                hello();
+                break;
+            case STARTTLS:
+                if (code != 220) {
+                    if (engine.startTlsRequired) {
+                        throw new SmtpException("STARTTLS failed: " + text(code, reply), code);
+                    }
+                    authenticate();
+                    break;
+                }
+                discardInput = true;
+                out.clear();
+                tlsStart = System.nanoTime();
+                startTls();
+                command(Step.EHLO, "EHLO " + engine.localHost);
+                break;
+            case AUTH_USER:
+                if (code != 334) {
+                    throw new SmtpException("Authentication failed: " + text(code, reply), code);
+                }
+                command(Step.AUTH_PASS, base64(engine.username));
+                break;
+            case AUTH_PASS:
+                if (code != 334) {
+                    throw new SmtpException("Authentication failed: " + text(code, reply), code);
+                }
+                command(Step.AUTH, base64(engine.password));
+                break;
+            case AUTH:
+                if (code != 235) {
+                    throw new SmtpException("Authentication failed: " + text(code, reply), code);
+                }
+                ready();
+                break;
+            case MAIL:
+                replied = true;
+                if (code != 250) {
+                    failure(code, reply);
+                }
+                sendWaiting();
+                break;
+            case RCPT:
+                rcptCodes.put(job.rcptTo[rcptIndex++], code);
+                if (!SmtpResult.isAccepted(code)) {
+                    failReply = text(code, reply);
+                }
+                sendWaiting();
+                break;
+            case DATA:
+                if (code != 354) {
+                    failure(code, reply);
+                    finish(false, failCode, failReply);
+                    break;
+                }
+                if (failCode != 0 || accepted() == 0) {
+                    aborted = true;//服务器仍然接受了 DATA, 只发结束标记, 不投递内容
+                    out.add(ByteBuffer.wrap(new byte[]{'.', '\r', '\n'}));
+                } else {
+                    out.addAll(job.data());
+                }
+                expected.add(Step.END_DATA);
+                break;
+            case END_DATA:
+                if (code == 250 && !aborted) {
+                    delivered++;
+                    finish(true, code, text(code, reply));
+                } else {
+                    if (code == 250 && failCode == 0) {
+                        failCode = 554;
+                        failReply = "554 No valid recipients.";
+                    }
+                    failure(code, reply);
+                    finish(false, failCode, failReply);
+                }
+                break;
+            case RSET:
+                if (code != 250) {
+                    quit();
+                    break;
+                }
+                next();
+                break;
+            case QUIT:
+                close(null);
+                break;
+            default:
+                throw new IllegalStateException(step.name());
+        }
+    }
+
+    //endregion //应答
+
+    //region //会话
+
+    private void hello() throws IOException, SmtpException {
+        if (tls == null && engine.startTls && !tlsTried) {
+            tlsTried = true;
+            if (extensions.containsKey("STARTTLS")) {
+                command(Step.STARTTLS, "STARTTLS");
+                return;
+            }
+            if (engine.startTlsRequired) {
+                throw new SmtpException("STARTTLS is not supported by server.");
+            }
+        }
+        authenticate();
+    }
+
+    private void authenticate() throws IOException, SmtpException {
+        String mechanisms = extensions.get("AUTH");
+        if (engine.username == null || mechanisms == null) {//和 javax.mail 一样, 服务器不支持 AUTH 时不认证
+            ready();
+            return;
+        }
+        authStart = System.nanoTime();
+        List<String> list = Arrays.asList(mechanisms.toUpperCase(Locale.ENGLISH).split("\\s+"));
+        if (list.contains("PLAIN")) {
+            command(Step.AUTH, "AUTH PLAIN " + base64('\0' + engine.username + '\0' + engine.password));
+        } else if (list.contains("LOGIN")) {
+            command(Step.AUTH_USER, "AUTH LOGIN");
+        } else {
+            throw new SmtpException("No supported AUTH mechanism: " + mechanisms);
+        }
+    }
+
+    /**
+     * 连接可以发送邮件了
+     */
+    private void ready() {
+        if (!setupDone) {
+            setupDone = true;
+            long now = System.nanoTime();
+            authNanos = authStart > 0 ? now - authStart : 0;
+            setupNanos = now - created;
+            engine.connected();
+        }
+        next();
+    }
+
+    /**
+     * 取下一封邮件, 没有时空闲等待
+     */
+    void next() {
+        if (delivered >= engine.maxMessagesPerConnection) {
+            quit();
+            return;
+        }
+        SmtpJob next;
+        while ((next = engine.poll()) != null) {
+            if (start(next)) {
+                return;
+            }
+        }
+        state = State.READY;
+        deadline = System.currentTimeMillis() + engine.idleTimeout;
+        loop.idle(this);
+    }
+
+    /**
+     * @return false 表示这封邮件在本地就被拒绝(超出服务器的大小限制), 没有发出任何命令
+     */
+    private boolean start(SmtpJob job) {
+        String size = extensions.get("SIZE");
+        if (size != null && size.length() > 0) {
+            try {
+                long limit = Long.parseLong(size.trim());
+                if (limit > 0 && job.size() > limit) {
+                    job.future.complete(new SmtpResult(false, 552, "Message size " + job.size()
+                            + " exceeds fixed maximum message size " + limit, new HashMap<String, Integer>(), 0));
+                    return false;
+                }
+            } catch (NumberFormatException ignore) {
+            }
+        }
+        this.job = job;
+        state = State.BUSY;
+        touch();
+        started++;
+        jobStart = System.nanoTime();
+        codeCount = 0;
+        codes = SendListeners.isEmpty() ? null : new int[job.rcptTo.length + 3];
+        rcptIndex = 0;
+        rcptCodes = new LinkedHashMap<String, Integer>();
+        failCode = 0;
+        failReply = null;
+        replied = false;
+        aborted = false;
+        StringBuilder mail = new StringBuilder("MAIL FROM:<").append(job.mailFrom).append('>');
+        if (size != null) {
+            mail.append(" SIZE=").append(job.size());
+        }
+        if (job.isEightBit() && extensions.containsKey("8BITMIME")) {
+            mail.append(" BODY=8BITMIME");
+        }
+        boolean pipelining = extensions.containsKey("PIPELINING");
+        waiting.clear();
+        waiting.add(new String[]{Step.MAIL.name(), mail.toString()});
+        for (String rcpt : job.rcptTo) {
+            waiting.add(new String[]{Step.RCPT.name(), "RCPT TO:<" + rcpt + '>'});
+        }
+        waiting.add(new String[]{Step.DATA.name(), "DATA"});
+        if (pipelining) {
+            while (!waiting.isEmpty()) {
+                String[] command = waiting.poll();
+                command(Step.valueOf(command[0]), command[1]);
+            }
+        } else {
+            sendWaiting();
+        }
+        try {
+            flushOut();
+        } catch (IOException e) {
+            close(e);
+        }
+        return true;
+    }
+
+    /**
+     * 不支持 PIPELINING 时, 收到上一条应答后再发送下一条命令
+     */
+    private void sendWaiting() {
+        String[] command = waiting.poll();
+        if (command == null) {
+            return;
+        }
+        Step step = Step.valueOf(command[0]);
+        if (failCode != 0 || step == Step.DATA && accepted() == 0) {
+            if (failCode == 0) {
+                failCode = rcptCodes.isEmpty() ? 554 : rcptCodes.values().iterator().next();
+                failReply = failReply == null ? "No recipients." : failReply;
+            }
+            waiting.clear();
+            finish(false, failCode, failReply);
+            return;
+        }
+        command(step, command[1]);
+    }
+
+    private void finish(boolean success, int code, String reply) {
+        SmtpJob done = job;
+        job = null;
+        publish(done, success ? null : new SmtpException(reply, code));
+        done.future.complete(new SmtpResult(success, code, reply, rcptCodes, success ? done.size() : 0));
+        if (success) {
+            next();
+        } else {
+            command(Step.RSET, "RSET");
+        }
+    }
+
+    private void failure(int code, List<String> reply) {
+        if (failCode == 0) {
+            failCode = code;
+            failReply = text(code, reply);
+        }
+    }
+
+    private int accepted() {
+        int count = 0;
+        for (Integer code : rcptCodes.values()) {
+            if (SmtpResult.isAccepted(code)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    void quit() {
+        if (state == State.CLOSING || state == State.CLOSED) {
+            return;
+        }
+        loop.removeIdle(this);
+        state = State.CLOSING;
+        deadline = System.currentTimeMillis() + engine.timeout;
+        command(Step.QUIT, "QUIT");
+        try {
+            flushOut();
+        } catch (IOException e) {
+            close(null);
+        }
+    }
+
+    /**
+     * 关闭连接. 正在发送的邮件如果还没有得到服务器的任何应答, 会重新排队一次.
+     *
+     * @param cause 异常关闭的原因, 正常关闭时为 null
+     */
+    void close(Throwable cause) {
+        if (state == State.CLOSED) {
+            return;
+        }
+        state = State.CLOSED;
+        loop.removeIdle(this);
+        if (tls != null && cause == null) {
+            tls.close();
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException ignore) {
+        }
+        SmtpJob current = job;
+        job = null;
+        if (current != null) {
+            if (!replied && current.attempts++ == 0) {
+                engine.requeue(current);
+            } else {
+                Throwable error = cause == null ? new SmtpException("Connection closed.") : cause;
+                publish(current, error);
+                current.future.fail(error);
+            }
+        }
+        engine.closed(setupDone, cause);
+        if (setupDone) {
+            loop.dispatch();
+        }
+    }
+
+    /**
+     * 有监听器时发布这封邮件的事件. 连接上的第一封邮件同时带上建立连接各阶段的耗时.
+     */
+    private void publish(SmtpJob done, Throwable error) {
+        if (codes == null || SendListeners.isEmpty()) {
+            return;
+        }
+        long sendNanos = System.nanoTime() - jobStart;
+        boolean reused = started > 1;
+        SendEvent.Builder builder = SendEvent.newBuilder(engine.host + ':' + engine.port)
+                .error(error)
+                .reused(reused)
+                .recipients(done.rcptTo.length)
+                .bytes(error == null ? done.size() : 0)
+                .data(sendNanos);
+        if (reused) {
+            builder.total(sendNanos);
+        } else {
+            builder.connect(connectNanos).tls(tlsNanos).auth(authNanos).total(setupNanos + sendNanos);
+        }
+        for (int i = 0; i < codeCount; i++) {
+            builder.replyCode(codes[i]);
+        }
+        codes = null;
+        SendListeners.publish(builder.build(error == null));
+    }
+
+    //endregion //会话
+
+    //region //输出
+
+    private void command(Step step, String line) {
+        try {
+            out.add(ByteBuffer.wrap((line + "\r\n").getBytes("UTF-8")));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        expected.add(step);
+    }
+
+    private void startTls() throws IOException {
+        tls = new TlsLayer(channel, engine.newSSLEngine());
+        if (in.capacity() < tls.applicationBufferSize()) {
+            in = ByteBuffer.allocate(tls.applicationBufferSize());
+        }
+    }
+
+    private void flushOut() throws IOException {
+        if (state == State.CLOSED) {
+            return;
+        }
+        if (tls != null) {
+            if (tls.flush()) {
+                while (!out.isEmpty()) {
+                    ByteBuffer buffer = out.peek();
+                    tls.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        break;
+                    }
+                    out.poll();
+                }
+            }
+        } else {
+            while (!out.isEmpty()) {
+                int count = 0;
+                for (ByteBuffer buffer : out) {
+                    gather[count++] = buffer;
+                    if (count == GATHER) {
+                        break;
+                    }
+                }
+                long n = channel.write(gather, 0, count);
+                Arrays.fill(gather, 0, count, null);
+                while (!out.isEmpty() && !out.peek().hasRemaining()) {
+                    out.poll();
+                }
+                if (n == 0) {
+                    break;
+                }
+            }
+        }
+        boolean pending = tls != null ? tls.hasPendingOutput() : !out.isEmpty();
+        key.interestOps(SelectionKey.OP_READ | (pending ? SelectionKey.OP_WRITE : 0));
+    }
+
+    private void touch() {
+        if (state != State.READY && state != State.CLOSING) {
+            deadline = System.currentTimeMillis() + engine.timeout;
+        }
+    }
+
+    //endregion //输出
+
+    private static String text(int code, List<String> reply) {
+        StringBuilder sb = new StringBuilder().append(code);
+        for (String line : reply) {
+            sb.append(' ').append(line);
+        }
+        return sb.toString();
+    }
+
+    private static String base64(String s) {
+        try {
+            return new String(BASE64EncoderStream.encode(s.getBytes("UTF-8")), "US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
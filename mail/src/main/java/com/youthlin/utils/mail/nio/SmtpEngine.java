@@ -0,0 +1,465 @@
+package com.youthlin.utils.mail.nio;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 非阻塞 SMTP 客户端.
+ * <p>
+ * 少量事件循环线程复用到同一台服务器的多个连接, 邮件排队后由空闲连接依次投递,
+ * 连接不够时在上限内建立新连接. 支持 EHLO, STARTTLS, AUTH PLAIN/LOGIN, PIPELINING, SIZE, 8BITMIME.
+ * <pre>
+ * SmtpEngine engine = SmtpEngine.newBuilder()
+ *         .host("host")
+ *         .auth("username", "password")
+ *         .ssl(465)
+ *         .maxConnections(32)
+ *         .start();
+ * MailSender.newInstance(session)...send(engine);   // 或 payload.send(engine, addresses)
+ * ...
+ * engine.close();
+ * </pre>
+ * 引擎可以在多个线程间共享, 用完后需要关闭.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class SmtpEngine implements Closeable {
+    final String host;
+    final int port;
+    /**
+     * 创建引擎时解析一次, 事件循环线程中建立连接时不再做阻塞的 DNS 查询
+     */
+    final InetSocketAddress address;
+    final boolean ssl;
+    final boolean startTls;
+    final boolean startTlsRequired;
+    final String username;
+    final String password;
+    final String localHost;
+    final int timeout;
+    final int idleTimeout;
+    final int maxMessagesPerConnection;
+    private final int maxConnections;
+    private final SSLContext sslContext;
+    private final boolean checkServerIdentity;
+    private final EventLoop[] loops;
+    private final Thread[] threads;
+    private final Queue<SmtpJob> queue = new ConcurrentLinkedQueue<SmtpJob>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger connecting = new AtomicInteger();
+    private final AtomicInteger next = new AtomicInteger();
+    private volatile boolean closed;
+
+    private SmtpEngine(Builder builder) throws IOException {
+        host = builder.host;
+        port = builder.port;
+        address = new InetSocketAddress(host, port);
+        if (address.isUnresolved()) {
+            throw new UnknownHostException(host);
+        }
+        ssl = builder.ssl;
+        startTls = builder.startTls;
+        startTlsRequired = builder.startTlsRequired;
+        username = builder.username;
+        password = builder.password;
+        localHost = builder.localHost == null ? defaultLocalHost() : builder.localHost;
+        timeout = builder.timeout;
+        idleTimeout = builder.idleTimeout;
+        maxMessagesPerConnection = builder.maxMessagesPerConnection;
+        maxConnections = builder.maxConnections;
+        sslContext = builder.sslContext;
+        checkServerIdentity = builder.checkServerIdentity;
+        loops = new EventLoop[builder.threads];
+        threads = new Thread[builder.threads];
+        boolean opened = false;
+        try {
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop(this);
+                threads[i] = new Thread(loops[i], "smtp-engine-" + host + '-' + i);
+                threads[i].setDaemon(true);
+            }
+            opened = true;
+        } finally {
+            if (!opened) {
+                //线程还没有启动, 关闭已经打开的选择器
+                for (EventLoop loop : loops) {
+                    if (loop != null) {
+                        loop.close();
+                    }
+                }
+            }
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * 异步发送.
+     *
+     * @param mailFrom 信封发件人(MAIL FROM), 为 null 时使用空的退信地址
+     * @param rcptTo   信封收件人(RCPT TO)
+     * @param message  序列化好的邮件(CRLF 换行), 发送时不会修改它的位置
+     * @return 服务器应答后完成的 Future
+     */
+    public SmtpFuture send(String mailFrom, String[] rcptTo, ByteBuffer message) {
+        return send(mailFrom, rcptTo, message, null);
+    }
+
+    /**
+     * @param callback 完成时在事件循环线程中调用, 可以为 null
+     */
+    public SmtpFuture send(String mailFrom, String[] rcptTo, ByteBuffer message, SmtpCallback callback) {
+        if (rcptTo == null || rcptTo.length == 0) {
+            throw new IllegalArgumentException("No recipients.");
+        }
+        if (closed) {
+            throw new IllegalStateException("Engine closed.");
+        }
+        SmtpFuture future = new SmtpFuture(callback);
+        enqueue(new SmtpJob(mailFrom, rcptTo.clone(), message.duplicate(), future));
+        return future;
+    }
+
+    /**
+     * @return 排队等待连接的邮件数
+     */
+    public int getQueueSize() {
+        return pending.get();
+    }
+
+    /**
+     * @return 当前打开的连接数
+     */
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    /**
+     * 关闭所有连接并停止事件循环. 还没有完成的邮件以失败结束.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+        for (Thread thread : threads) {
+            if (thread == Thread.currentThread()) {
+                continue;
+            }
+            try {
+                thread.join(timeout);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        failAll(new SmtpException("Engine closed."));
+    }
+
+    //region //事件循环使用
+
+    SmtpJob poll() {
+        SmtpJob job = queue.poll();
+        if (job != null) {
+            pending.decrementAndGet();
+        }
+        return job;
+    }
+
+    /**
+     * 连接在收到任何应答之前断开, 重新排队
+     */
+    void requeue(SmtpJob job) {
+        if (closed) {
+            job.future.fail(new SmtpException("Engine closed."));
+            return;
+        }
+        enqueue(job);
+    }
+
+    int pendingCount() {
+        return pending.get();
+    }
+
+    int connectingCount() {
+        return connecting.get();
+    }
+
+    /**
+     * 在上限内占用一个连接名额
+     */
+    boolean acquireConnection() {
+        while (true) {
+            int count = connections.get();
+            if (count >= maxConnections || closed) {
+                return false;
+            }
+            if (connections.compareAndSet(count, count + 1)) {
+                connecting.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 连接建立完成(握手、认证都已通过)
+     */
+    void connected() {
+        connecting.decrementAndGet();
+    }
+
+    /**
+     * 连接关闭. 建立连接失败且没有其他连接可用时, 排队的邮件全部以失败结束, 避免无限重连.
+     */
+    void closed(boolean setupDone, Throwable cause) {
+        connections.decrementAndGet();
+        if (setupDone) {
+            return;
+        }
+        connecting.decrementAndGet();
+        if (cause != null && connections.get() == 0) {
+            failAll(cause instanceof Exception
+                    ? new SmtpException("Can not connect to " + host + ':' + port, (Exception) cause)
+                    : cause);
+        }
+    }
+
+    SSLEngine newSSLEngine() {
+        SSLEngine engine = sslContext.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        if (checkServerIdentity) {
+            SSLParameters parameters = engine.getSSLParameters();
+            try {
+                //Java 7+
+                Method method = SSLParameters.class.getMethod("setEndpointIdentificationAlgorithm", String.class);
+                method.invoke(parameters, "HTTPS");
+            } catch (Exception e) {
+                throw new IllegalStateException("Server identity check is not supported.", e);
+            }
+            engine.setSSLParameters(parameters);
+        }
+        return engine;
+    }
+
+    //endregion //事件循环使用
+
+    /**
+     * 入队后再检查一次: close() 可能在检查和入队之间清空了队列, 此时事件循环已经退出, 由这里让邮件失败
+     */
+    private void enqueue(SmtpJob job) {
+        queue.add(job);
+        pending.incrementAndGet();
+        if (closed) {
+            failAll(new SmtpException("Engine closed."));
+            return;
+        }
+        loop().signal();
+    }
+
+    private void failAll(Throwable cause) {
+        SmtpJob job;
+        while ((job = poll()) != null) {
+            job.future.fail(cause);
+        }
+    }
+
+    /**
+     * 优先选择有空闲连接的事件循环, 否则轮流选择
+     */
+    private EventLoop loop() {
+        for (EventLoop loop : loops) {
+            if (loop.idleCount() > 0) {
+                return loop;
+            }
+        }
+        return loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+    }
+
+    private static String defaultLocalHost() {
+        try {
+            InetAddress address = InetAddress.getLocalHost();
+            String name = address.getCanonicalHostName();
+            if (name.equals(address.getHostAddress())) {
+                return '[' + name + ']';//地址字面量
+            }
+            return name;
+        } catch (UnknownHostException e) {
+            return "localhost";
+        }
+    }
+
+    /**
+     * SmtpEngine 构造器. 除 host 外都有默认值.
+     */
+    public static class Builder {
+        private String host;
+        private int port = 25;
+        private boolean ssl;
+        private boolean startTls;
+        private boolean startTlsRequired;
+        private String username;
+        private String password;
+        private String localHost;
+        private int threads = 1;
+        private int maxConnections = 16;
+        private int timeout = 30000;
+        private int idleTimeout = 10000;
+        private int maxMessagesPerConnection = 100;
+        private SSLContext sslContext;
+        private boolean checkServerIdentity;
+
+        private Builder() {
+        }
+
+        public Builder host(String host) {
+            this.host = host;
+            return this;
+        }
+
+        /**
+         * 端口号，默认25
+         */
+        public Builder port(int port) {
+            this.port = port;
+            return this;
+        }
+
+        /**
+         * 连接建立后立即开始 TLS 握手(SMTPS)
+         */
+        public Builder ssl(int port) {
+            this.ssl = true;
+            return port(port);
+        }
+
+        /**
+         * 服务器支持时使用 STARTTLS 升级连接
+         */
+        public Builder startTls() {
+            return startTls(false);
+        }
+
+        /**
+         * @param required 服务器不支持 STARTTLS 时是否失败
+         */
+        public Builder startTls(boolean required) {
+            this.startTls = true;
+            this.startTlsRequired = required;
+            return this;
+        }
+
+        public Builder auth(String username, String password) {
+            this.username = username;
+            this.password = password;
+            return this;
+        }
+
+        /**
+         * EHLO 使用的本机名称, 默认取本机的主机名
+         */
+        public Builder localHost(String localHost) {
+            this.localHost = localHost;
+            return this;
+        }
+
+        /**
+         * 事件循环线程数, 默认 1
+         */
+        public Builder threads(int threads) {
+            this.threads = Math.max(1, threads);
+            return this;
+        }
+
+        /**
+         * 最大连接数, 默认 16
+         */
+        public Builder maxConnections(int maxConnections) {
+            this.maxConnections = Math.max(1, maxConnections);
+            return this;
+        }
+
+        /**
+         * 连接、等待应答的超时毫秒数, 默认 30 秒
+         */
+        public Builder timeout(int timeout) {
+            this.timeout = timeout;
+            return this;
+        }
+
+        /**
+         * 空闲连接保持的毫秒数, 默认 10 秒, 超时后发送 QUIT 关闭
+         */
+        public Builder idleTimeout(int idleTimeout) {
+            this.idleTimeout = idleTimeout;
+            return this;
+        }
+
+        /**
+         * 每个连接最多发送的邮件数, 默认 100
+         */
+        public Builder maxMessagesPerConnection(int max) {
+            this.maxMessagesPerConnection = Math.max(1, max);
+            return this;
+        }
+
+        /**
+         * TLS 使用的 SSLContext, 默认使用 JDK 默认的信任库
+         */
+        public Builder sslContext(SSLContext sslContext) {
+            this.sslContext = sslContext;
+            return this;
+        }
+
+        /**
+         * TLS 握手时是否校验证书中的主机名, 默认否(与 javax.mail 的默认值一致). 需要 Java 7 以上.
+         */
+        public Builder checkServerIdentity(boolean check) {
+            this.checkServerIdentity = check;
+            return this;
+        }
+
+        /**
+         * 启动事件循环线程
+         */
+        public SmtpEngine start() {
+            if (host == null) {
+                throw new IllegalArgumentException("host is required.");
+            }
+            if (sslContext == null && (ssl || startTls)) {
+                try {
+                    sslContext = SSLContext.getDefault();
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            try {
+                return new SmtpEngine(this);
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException("Unknown host: " + host, e);
+            } catch (IOException e) {
+                throw new IllegalStateException("Can not open selector.", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.youthlin.utils.mail.nio;
+
+import javax.mail.MessagingException;
+
+/**
+ * SMTP 会话失败: 连接、TLS、认证出错, 或服务器返回了错误的应答.
+ */
+@SuppressWarnings("WeakerAccess")
+public class SmtpException extends MessagingException {
+    private static final long serialVersionUID = -3194260431582649117L;
+    private final int replyCode;
+
+    public SmtpException(String message) {
+        this(message, -1);
+    }
+
+    public SmtpException(String message, int replyCode) {
+        super(message);
+        this.replyCode = replyCode;
+    }
+
+    public SmtpException(String message, Exception cause) {
+        super(message, cause);
+        this.replyCode = -1;
+    }
+
+    /**
+     * @return 服务器的应答码, 不是由应答引起时返回 -1
+     */
+    public int getReplyCode() {
+        return replyCode;
+    }
+}
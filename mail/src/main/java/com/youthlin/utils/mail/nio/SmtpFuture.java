@@ -0,0 +1,65 @@
+package com.youthlin.utils.mail.nio;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * 异步发送的结果. 由事件循环在收到服务器应答后完成.
+ * <p>
+ * 基于 FutureTask(AQS) 实现, 等待结果的线程不会占用监视器锁.
+ */
+public final class SmtpFuture extends FutureTask<SmtpResult> {
+    private static final Callable<SmtpResult> NONE = new Callable<SmtpResult>() {
+        @Override
+        public SmtpResult call() {
+            throw new UnsupportedOperationException();
+        }
+    };
+    private final SmtpCallback callback;
+
+    SmtpFuture(SmtpCallback callback) {
+        super(NONE);
+        this.callback = callback;
+    }
+
+    @Override
+    public void run() {
+        throw new UnsupportedOperationException("Completed by the event loop.");
+    }
+
+    void complete(SmtpResult result) {
+        if (isDone()) {
+            return;
+        }
+        set(result);
+        if (callback != null) {
+            try {
+                callback.onComplete(result);
+            } catch (RuntimeException e) {
+                uncaught(e);
+            }
+        }
+    }
+
+    void fail(Throwable cause) {
+        if (isDone()) {
+            return;
+        }
+        setException(cause);
+        if (callback != null) {
+            try {
+                callback.onFailure(cause);
+            } catch (RuntimeException e) {
+                uncaught(e);
+            }
+        }
+    }
+
+    /**
+     * 回调抛出的异常不能中断事件循环
+     */
+    private static void uncaught(RuntimeException e) {
+        Thread thread = Thread.currentThread();
+        thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+    }
+}
@@ -0,0 +1,87 @@
+package com.youthlin.utils.mail.nio;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一封待投递的邮件: 信封和已经序列化好的内容.
+ * <p>
+ * 构造时扫描一遍内容, 记录需要点转义(行首的 '.')的位置和是否含有 8 位字节,
+ * 发送时按这些位置切片写出, 不复制内容.
+ */
+final class SmtpJob {
+    private static final byte[] DOT = {'.'};
+    private static final byte[] END = {'.', '\r', '\n'};
+    private static final byte[] CRLF_END = {'\r', '\n', '.', '\r', '\n'};
+    final String mailFrom;
+    final String[] rcptTo;
+    final SmtpFuture future;
+    private final ByteBuffer content;
+    private final int[] dots;//行首 '.' 的位置
+    private final boolean eightBit;
+    private final boolean endsWithCrlf;
+    int attempts;
+
+    SmtpJob(String mailFrom, String[] rcptTo, ByteBuffer content, SmtpFuture future) {
+        this.mailFrom = mailFrom == null ? "" : mailFrom;
+        this.rcptTo = rcptTo;
+        this.content = content;
+        this.future = future;
+        List<Integer> list = new ArrayList<Integer>();
+        boolean eightBit = false;
+        int start = content.position();
+        int end = content.limit();
+        boolean lineStart = true;
+        for (int i = start; i < end; i++) {
+            byte b = content.get(i);
+            if (lineStart && b == '.') {
+                list.add(i);
+            }
+            if (b < 0) {
+                eightBit = true;
+            }
+            lineStart = b == '\n';
+        }
+        this.dots = new int[list.size()];
+        for (int i = 0; i < dots.length; i++) {
+            dots[i] = list.get(i);
+        }
+        this.eightBit = eightBit;
+        this.endsWithCrlf = end - start >= 2 && content.get(end - 2) == '\r' && content.get(end - 1) == '\n';
+    }
+
+    long size() {
+        return content.remaining();
+    }
+
+    boolean isEightBit() {
+        return eightBit;
+    }
+
+    /**
+     * DATA 之后要写出的全部缓冲区: 点转义后的内容和结束标记 CRLF.CRLF
+     */
+    List<ByteBuffer> data() {
+        List<ByteBuffer> list = new ArrayList<ByteBuffer>(dots.length * 2 + 2);
+        int from = content.position();
+        for (int dot : dots) {
+            if (dot > from) {
+                list.add(slice(from, dot));
+            }
+            list.add(ByteBuffer.wrap(DOT));
+            from = dot;//原来的 '.' 留在下一片的开头
+        }
+        if (content.limit() > from) {
+            list.add(slice(from, content.limit()));
+        }
+        list.add(ByteBuffer.wrap(endsWithCrlf || size() == 0 ? END : CRLF_END));
+        return list;
+    }
+
+    private ByteBuffer slice(int from, int to) {
+        ByteBuffer buffer = content.duplicate();
+        buffer.limit(to).position(from);
+        return buffer.slice();
+    }
+}
@@ -0,0 +1,86 @@
+package com.youthlin.utils.mail.nio;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 一次投递的结果: 服务器对邮件和每个收件人的应答.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class SmtpResult {
+    private final boolean success;
+    private final int replyCode;
+    private final String reply;
+    private final Map<String, Integer> recipients;
+    private final long bytes;
+
+    SmtpResult(boolean success, int replyCode, String reply, Map<String, Integer> recipients, long bytes) {
+        this.success = success;
+        this.replyCode = replyCode;
+        this.reply = reply;
+        this.recipients = Collections.unmodifiableMap(new LinkedHashMap<String, Integer>(recipients));
+        this.bytes = bytes;
+    }
+
+    /**
+     * @return 服务器是否接受了这封邮件(至少一个收件人被接受)
+     */
+    public boolean isSuccess() {
+        return success;
+    }
+
+    /**
+     * @return 决定结果的应答码: 成功时是 DATA 结束后的应答, 失败时是第一个失败的应答
+     */
+    public int getReplyCode() {
+        return replyCode;
+    }
+
+    public String getReply() {
+        return reply;
+    }
+
+    /**
+     * @return 每个收件人的 RCPT 应答码, 按发送顺序
+     */
+    public Map<String, Integer> getRecipientReplyCodes() {
+        return recipients;
+    }
+
+    public List<String> getAcceptedRecipients() {
+        return filter(true);
+    }
+
+    public List<String> getRejectedRecipients() {
+        return filter(false);
+    }
+
+    /**
+     * @return 写入 DATA 的字节数(不含点转义)
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    private List<String> filter(boolean accepted) {
+        List<String> list = new ArrayList<String>();
+        for (Map.Entry<String, Integer> entry : recipients.entrySet()) {
+            if (isAccepted(entry.getValue()) == accepted) {
+                list.add(entry.getKey());
+            }
+        }
+        return list;
+    }
+
+    static boolean isAccepted(int code) {
+        return code == 250 || code == 251;
+    }
+
+    @Override
+    public String toString() {
+        return "SmtpResult{success=" + success + ", reply=" + reply + ", recipients=" + recipients + '}';
+    }
+}
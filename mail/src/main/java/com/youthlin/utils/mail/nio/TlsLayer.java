@@ -0,0 +1,193 @@
+package com.youthlin.utils.mail.nio;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 非阻塞通道上的 TLS: 用 SSLEngine 加解密, 握手在读写的过程中顺带完成.
+ * <p>
+ * 待写出的密文最多只有一个 TLS 记录, 通道写不动时由调用方关注 OP_WRITE 再继续.
+ */
+final class TlsLayer {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private ByteBuffer netIn;//写模式: 从通道读到、还没解密的密文
+    private ByteBuffer netOut;//读模式: 加密好、还没写出的密文
+
+    TlsLayer(SocketChannel channel, SSLEngine engine) throws SSLException {
+        this.channel = channel;
+        this.engine = engine;
+        int packet = engine.getSession().getPacketBufferSize();
+        netIn = ByteBuffer.allocate(packet);
+        netOut = ByteBuffer.allocate(packet);
+        netOut.flip();
+        engine.beginHandshake();
+    }
+
+    /**
+     * 明文缓冲区至少需要的大小
+     */
+    int applicationBufferSize() {
+        return engine.getSession().getApplicationBufferSize();
+    }
+
+    /**
+     * 从通道读取并解密到 dst.
+     *
+     * @return 解密得到的字节数; 对方关闭连接且没有更多数据时返回 -1
+     */
+    int read(ByteBuffer dst) throws IOException {
+        int n = netIn.hasRemaining() ? channel.read(netIn) : 0;
+        int produced = 0;
+        boolean closed = n < 0;
+        netIn.flip();
+        try {
+            while (true) {
+                SSLEngineResult result = engine.unwrap(netIn, dst);
+                produced += result.bytesProduced();
+                runTasks();
+                SSLEngineResult.Status status = result.getStatus();
+                if (status == SSLEngineResult.Status.CLOSED) {
+                    closed = true;
+                    break;
+                }
+                if (status == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    break;//dst 满了, 调用方处理后通过 hasBufferedInput() 继续
+                }
+                if (status == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                    if (netIn.limit() == netIn.capacity() && netIn.position() == 0) {
+                        ByteBuffer bigger = ByteBuffer.allocate(netIn.capacity() * 2);
+                        bigger.put(netIn).flip();
+                        netIn = bigger;
+                    }
+                    break;
+                }
+                if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    if (!flush()) {
+                        break;//通道写不动, 等 OP_WRITE 之后再继续握手
+                    }
+                    continue;
+                }
+                if (!netIn.hasRemaining() || result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                    break;
+                }
+            }
+        } finally {
+            netIn.compact();
+        }
+        return produced == 0 && closed ? -1 : produced;
+    }
+
+    /**
+     * 还有已经读到但没有解密的完整数据
+     */
+    boolean hasBufferedInput() {
+        return netIn.position() > 0;
+    }
+
+    /**
+     * 加密并写出 src, 写不完时 src 中会有剩余.
+     * 握手期间等待对方数据时不会消耗 src, 读到数据之后再调用即可.
+     */
+    void write(ByteBuffer src) throws IOException {
+        while (flushNet()) {
+            boolean handshake = engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP;
+            if (!src.hasRemaining() && !handshake) {
+                return;
+            }
+            SSLEngineResult result = wrap(src);
+            if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 写出待发送的密文和握手数据.
+     *
+     * @return 是否全部写出
+     */
+    boolean flush() throws IOException {
+        write(EMPTY);
+        return !netOut.hasRemaining();
+    }
+
+    /**
+     * 有没写出的密文, 需要关注 OP_WRITE
+     */
+    boolean hasPendingOutput() {
+        return netOut.hasRemaining();
+    }
+
+    boolean isHandshaking() {
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        return status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+                && status != SSLEngineResult.HandshakeStatus.FINISHED;
+    }
+
+    /**
+     * 发送 close_notify, 不等待对方应答
+     */
+    void close() {
+        engine.closeOutbound();
+        try {
+            flush();
+        } catch (IOException ignore) {
+        }
+    }
+
+    private SSLEngineResult wrap(ByteBuffer src) throws IOException {
+        netOut.clear();
+        try {
+            while (true) {
+                SSLEngineResult result = engine.wrap(src, netOut);
+                runTasks();
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+                    continue;
+                }
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED && src.hasRemaining()) {
+                    throw new SSLException("SSLEngine closed.");
+                }
+                return result;
+            }
+        } finally {
+            netOut.flip();
+        }
+    }
+
+    private boolean flushNet() throws IOException {
+        while (netOut.hasRemaining()) {
+            if (channel.write(netOut) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 握手中的耗时任务(证书校验等)直接在事件循环线程中执行
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * @param buffer 写模式的缓冲区
+     * @return 容量更大、内容相同的写模式缓冲区
+     */
+    private static ByteBuffer grow(ByteBuffer buffer, int min) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(min, buffer.capacity() * 2));
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+}
@@ -0,0 +1,7 @@
+/**
+ * 基于 java.nio 的非阻塞 SMTP 客户端.
+ * <p>
+ * 少量事件循环线程复用几百个连接, 支持 EHLO, AUTH PLAIN/LOGIN, STARTTLS(SSLEngine), PIPELINING, SIZE, 8BITMIME.
+ * 用于大批量发送, 默认的 <code>MailSender.send()</code> 仍然使用 javax.mail 的 Transport.
+ */
+package com.youthlin.utils.mail.nio;